@@ -0,0 +1,508 @@
+package org.conceptoriented.sc.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of appended records. Records are written to the log before they are appended to the tables so that they can be appended again after a crash.
+ *
+ * Appended records are encoded in a binary form and collected in memory. They are written to the file together (group commit) when commit is called,
+ * when the collected entries exceed the group size or regularly by a background thread (commit interval). The fsync policy determines when the file is forced to the disk.
+ * Each entry has its length and checksum so that a partially written entry at the end of the file (crash during write) is detected and ignored.
+ *
+ * The log stores only records appended after the last checkpoint: it is truncated by the schema checkpoint.
+ * After restart, the schema is restored from the checkpoint and then the log is replayed, that is, its records are appended to the tables and the schema is evaluated once.
+ *
+ * The file starts from a header with a generation which is changed by each truncation. The checkpoint stores the generation and the length of the log it contains.
+ * If the log has not been truncated after the checkpoint (crash) then replay skips records which are already in the checkpoint.
+ */
+public class AppendLog {
+
+	public enum FsyncPolicy {
+		NEVER, // The operating system decides when the data is written to the disk
+		ALWAYS, // Force the data to the disk on each commit
+		INTERVAL, // Force the data to the disk at most once per fsync interval
+	}
+
+	static final int MAGIC = 0x5343414C;
+	static final int HEADER = 12; // Magic and generation
+
+	// Entry types
+	static final byte TABLE = 1; // Code of a table and its columns (used by the next entries)
+	static final byte ROW = 2; // One record
+	static final byte BATCH = 3; // Many records stored column-wise
+
+	// Array types in batch entries
+	static final byte DOUBLES = 1;
+	static final byte LONGS = 2;
+	static final byte OBJECTS = 3;
+
+	private final File file;
+	public File getFile() {
+		return this.file;
+	}
+
+	private FsyncPolicy fsyncPolicy = FsyncPolicy.INTERVAL;
+	public FsyncPolicy getFsyncPolicy() {
+		return this.fsyncPolicy;
+	}
+	public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+		this.fsyncPolicy = fsyncPolicy;
+	}
+
+	private long fsyncInterval = 1000; // Milliseconds
+	public long getFsyncInterval() {
+		return this.fsyncInterval;
+	}
+	public void setFsyncInterval(long fsyncInterval) {
+		this.fsyncInterval = fsyncInterval;
+	}
+
+	private int groupSize = 1 << 20; // Collected bytes which are committed without waiting for an explicit commit
+	public int getGroupSize() {
+		return this.groupSize;
+	}
+	public void setGroupSize(int groupSize) {
+		this.groupSize = groupSize;
+	}
+
+	private FileChannel channel;
+
+	private long generation; // Changed by each truncation
+	public long getGeneration() {
+		return this.generation;
+	}
+
+	// Length of the log with all committed records
+	public synchronized long getPosition() throws IOException {
+		return this.channel.size();
+	}
+
+	private final EntryBuffer entry = new EntryBuffer(); // Current entry
+	private final DataOutputStream entryOut = new DataOutputStream(this.entry);
+	private final CRC32 crc = new CRC32();
+
+	private EntryBuffer pending = new EntryBuffer(); // Entries which have not been written yet
+	private EntryBuffer writing = new EntryBuffer(); // Entries which are being written
+
+	private final Map<Table, TableCode> codes = new HashMap<Table, TableCode>(); // Tables defined in the log
+	private int nextCode = 0;
+
+	private long lastFsync = 0;
+	private boolean dirty = false; // Written but not forced
+
+	private ScheduledExecutorService executor; // Regular commits
+
+	//
+	// Append
+	//
+
+	public synchronized void append(Table table, Record record) {
+		try {
+			TableCode code = this.define(table);
+
+			this.entryOut.writeByte(ROW);
+			this.entryOut.writeInt(code.code);
+			for(Column column : code.columns) {
+				ColumnStorageDump.writeObject(this.entryOut, record.get(column.getName()));
+			}
+			this.endEntry();
+		}
+		catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public synchronized void append(ColumnBatch batch) {
+		try {
+			TableCode code = this.define(batch.getTable());
+			int length = batch.getLength();
+
+			this.entryOut.writeByte(BATCH);
+			this.entryOut.writeInt(code.code);
+			this.entryOut.writeInt(length);
+			this.entryOut.writeInt(batch.getArrays().size());
+			for(Map.Entry<Column, Object> e : batch.getArrays().entrySet()) {
+				this.entryOut.writeInt(code.columns.indexOf(e.getKey()));
+
+				Object array = e.getValue();
+				if(array instanceof double[]) {
+					this.entryOut.writeByte(DOUBLES);
+					double[] values = (double[])array;
+					for(int i=0; i<length; i++) this.entryOut.writeDouble(values[i]);
+				}
+				else if(array instanceof long[]) {
+					this.entryOut.writeByte(LONGS);
+					long[] values = (long[])array;
+					for(int i=0; i<length; i++) this.entryOut.writeLong(values[i]);
+				}
+				else {
+					this.entryOut.writeByte(OBJECTS);
+					Object[] values = (Object[])array;
+					for(int i=0; i<length; i++) ColumnStorageDump.writeObject(this.entryOut, values[i]);
+				}
+
+				boolean[] nulls = batch.getNulls().get(e.getKey());
+				this.entryOut.writeBoolean(nulls != null);
+				if(nulls != null) {
+					for(int i=0; i<length; i++) this.entryOut.writeBoolean(nulls[i]);
+				}
+			}
+			this.endEntry();
+		}
+		catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// Write the table definition if the table is new in the log or its columns have changed
+	private TableCode define(Table table) throws IOException {
+		List<Column> columns = table.getSchema().getColumns(table.getName());
+		TableCode code = this.codes.get(table);
+		if(code != null && code.columns.equals(columns)) return code;
+
+		code = new TableCode(this.nextCode++, columns);
+		this.codes.put(table, code);
+
+		this.entryOut.writeByte(TABLE);
+		this.entryOut.writeInt(code.code);
+		this.entryOut.writeUTF(table.getName());
+		this.entryOut.writeInt(columns.size());
+		for(Column column : columns) {
+			this.entryOut.writeUTF(column.getName());
+		}
+		this.endEntry();
+
+		return code;
+	}
+
+	// Move the current entry to the pending entries: [length][checksum][entry]
+	private void endEntry() throws IOException {
+		this.crc.reset();
+		this.crc.update(this.entry.buffer(), 0, this.entry.size());
+
+		DataOutputStream out = new DataOutputStream(this.pending);
+		out.writeInt(this.entry.size());
+		out.writeInt((int)this.crc.getValue());
+		this.entry.writeTo(this.pending);
+		this.entry.reset();
+
+		if(this.pending.size() >= this.groupSize) {
+			this.commit();
+		}
+	}
+
+	//
+	// Commit
+	//
+
+	// Write all appended records to the file
+	public synchronized void commit() {
+		try {
+			if(this.pending.size() > 0) {
+				EntryBuffer buffer = this.pending;
+				this.pending = this.writing;
+				this.writing = buffer;
+
+				ByteBuffer bytes = ByteBuffer.wrap(this.writing.buffer(), 0, this.writing.size());
+				while(bytes.hasRemaining()) {
+					this.channel.write(bytes);
+				}
+				this.writing.reset();
+				this.dirty = true;
+			}
+
+			if(!this.dirty) return;
+
+			long now = System.currentTimeMillis();
+			if(this.fsyncPolicy == FsyncPolicy.ALWAYS || (this.fsyncPolicy == FsyncPolicy.INTERVAL && now - this.lastFsync >= this.fsyncInterval)) {
+				this.channel.force(false);
+				this.lastFsync = now;
+				this.dirty = false;
+			}
+		}
+		catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// Commit regularly in the background (in addition to explicit commits)
+	public synchronized void start(long commitInterval) {
+		if(this.executor != null) return;
+
+		this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "append-log-" + this.file.getName());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.executor.scheduleWithFixedDelay(() -> this.commit(), commitInterval, commitInterval, TimeUnit.MILLISECONDS);
+	}
+
+	public void stop() {
+		ScheduledExecutorService executor;
+		synchronized(this) {
+			executor = this.executor;
+			this.executor = null;
+		}
+		if(executor == null) return;
+
+		executor.shutdown();
+		try {
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Remove all records (they are stored in a checkpoint)
+	// Records are removed before the generation is changed so that a crash in between does not make old records look new
+	public synchronized void truncate() throws IOException {
+		this.pending.reset();
+		this.codes.clear();
+		this.channel.truncate(HEADER);
+		this.channel.force(true);
+		this.writeHeader(UUID.randomUUID().getMostSignificantBits());
+		this.dirty = false;
+	}
+
+	// The log has been truncated after the checkpoint of the schema but its generation has not been changed (crash during truncation).
+	// Records appended now would look like records of the checkpoint so the generation is changed before accepting them.
+	synchronized void checkpointRestored(Schema schema) throws IOException {
+		if(schema.checkpointLogGeneration == null || schema.checkpointLogGeneration != this.generation) return;
+
+		this.commit();
+		long size = this.channel.size();
+		if(size >= schema.checkpointLogPosition) return;
+
+		this.writeHeader(UUID.randomUUID().getMostSignificantBits());
+		this.channel.position(size);
+	}
+
+	private void writeHeader(long generation) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.putInt(MAGIC).putLong(generation).flip();
+		while(header.hasRemaining()) {
+			this.channel.write(header, header.position());
+		}
+		this.channel.force(true);
+		this.channel.position(HEADER);
+		this.generation = generation;
+	}
+
+	public void close() throws IOException {
+		this.stop();
+		synchronized(this) {
+			if(this.channel == null) return;
+			this.commit();
+			if(this.dirty) this.channel.force(false);
+			this.channel.close();
+			this.channel = null;
+		}
+	}
+
+	//
+	// Replay
+	//
+
+	/**
+	 * Append all records stored in the log to the tables of the schema (without logging them again) and then evaluate the schema.
+	 * Tables and columns are found by name. Values of columns which do not exist anymore are ignored.
+	 * Records which are stored in the checkpoint of the schema (the log has the same generation) are not appended.
+	 * Returns the number of appended records.
+	 */
+	public synchronized long replay(Schema schema) throws IOException {
+		this.checkpointRestored(schema);
+		this.commit();
+
+		long skip = schema.checkpointLogGeneration != null && schema.checkpointLogGeneration == this.generation ? schema.checkpointLogPosition : HEADER;
+
+		Map<Integer, Table> tables = new HashMap<Integer, Table>();
+		Map<Integer, List<Column>> columns = new HashMap<Integer, List<Column>>();
+		long count = 0;
+		long position = HEADER;
+
+		InputStream in = new BufferedInputStream(Channels.newInputStream(this.channel.position(HEADER)));
+		try {
+			for(byte[] bytes = this.readEntry(in); bytes != null; bytes = this.readEntry(in)) {
+				boolean skipped = position < skip; // Table definitions are read also from skipped entries
+				position += 8 + bytes.length;
+
+				DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+				byte type = data.readByte();
+				int code = data.readInt();
+
+				if(type == TABLE) {
+					Table table = schema.getTable(data.readUTF());
+					List<Column> cols = new ArrayList<Column>();
+					for(int i=data.readInt(); i>0; i--) {
+						String name = data.readUTF();
+						cols.add(table != null ? schema.getColumn(table.getName(), name) : null);
+					}
+					tables.put(code, table);
+					columns.put(code, cols);
+				}
+				else if(type == ROW) {
+					Table table = tables.get(code);
+					if(table == null || skipped) continue;
+					Record record = new Record();
+					for(Column column : columns.get(code)) {
+						Object value = ColumnStorageDump.readObject(data);
+						if(column != null) record.set(column.getName(), value);
+					}
+					table.appendRecord(record);
+					count++;
+				}
+				else if(type == BATCH) {
+					Table table = tables.get(code);
+					if(table == null || skipped) continue;
+					List<Column> cols = columns.get(code);
+					int length = data.readInt();
+					ColumnBatch batch = new ColumnBatch(table, length);
+					batch.setLength(length);
+					for(int c=data.readInt(); c>0; c--) {
+						int index = data.readInt();
+						Column column = index >= 0 ? cols.get(index) : null;
+
+						byte kind = data.readByte();
+						Object array;
+						if(kind == DOUBLES) {
+							double[] values = new double[length];
+							for(int i=0; i<length; i++) values[i] = data.readDouble();
+							array = values;
+						}
+						else if(kind == LONGS) {
+							long[] values = new long[length];
+							for(int i=0; i<length; i++) values[i] = data.readLong();
+							array = values;
+						}
+						else {
+							Object[] values = new Object[length];
+							for(int i=0; i<length; i++) values[i] = ColumnStorageDump.readObject(data);
+							array = values;
+						}
+
+						boolean[] nulls = null;
+						if(data.readBoolean()) {
+							nulls = new boolean[length];
+							for(int i=0; i<length; i++) nulls[i] = data.readBoolean();
+						}
+
+						if(column == null) continue;
+						batch.put(column, array);
+						if(nulls != null) System.arraycopy(nulls, 0, batch.nulls(column), 0, length);
+					}
+					table.appendBatch(batch);
+					count += length;
+				}
+				else {
+					throw new IOException("Unknown entry type in append log.");
+				}
+			}
+		}
+		finally {
+			this.channel.position(this.channel.size());
+		}
+
+		schema.translate();
+		schema.evaluate();
+
+		return count;
+	}
+
+	// Read the next entry. Null if there are no more complete entries.
+	private byte[] readEntry(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		try {
+			int length = data.readInt();
+			int checksum = data.readInt();
+			if(length < 0 || length > this.channel.size()) return null;
+
+			byte[] bytes = new byte[length];
+			data.readFully(bytes);
+
+			this.crc.reset();
+			this.crc.update(bytes, 0, length);
+			if((int)this.crc.getValue() != checksum) return null;
+
+			return bytes;
+		}
+		catch(EOFException e) {
+			return null;
+		}
+	}
+
+	// Position after the last complete entry
+	private long validLength() throws IOException {
+		long length = HEADER;
+		InputStream in = new BufferedInputStream(Channels.newInputStream(this.channel.position(HEADER)));
+		for(byte[] bytes = this.readEntry(in); bytes != null; bytes = this.readEntry(in)) {
+			length += 8 + bytes.length;
+		}
+		return length;
+	}
+
+	public AppendLog(File file) throws IOException {
+		this.file = file;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		if(this.channel.size() < HEADER) { // New log
+			this.channel.truncate(0);
+			this.writeHeader(UUID.randomUUID().getMostSignificantBits());
+		}
+		else {
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			while(header.hasRemaining() && this.channel.read(header, header.position()) >= 0);
+			header.flip();
+			if(header.getInt() != MAGIC) {
+				this.channel.close();
+				throw new IOException("Not an append log: " + file);
+			}
+			this.generation = header.getLong();
+		}
+
+		// Remove an incomplete entry written during a crash (otherwise new entries would not be readable)
+		long length = this.validLength();
+		if(length < this.channel.size()) {
+			this.channel.truncate(length);
+		}
+		this.channel.position(length);
+	}
+}
+
+class TableCode {
+	int code;
+	List<Column> columns;
+
+	TableCode(int code, List<Column> columns) {
+		this.code = code;
+		this.columns = columns;
+	}
+}
+
+class EntryBuffer extends ByteArrayOutputStream {
+	byte[] buffer() {
+		return this.buf;
+	}
+}
@@ -0,0 +1,338 @@
+package org.conceptoriented.sc.core;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrent ingestion front end. Many producer threads can append records and one writer thread really appends them to the tables.
+ *
+ * Each table has its own bounded queue which is lock-free for producers. The writer thread drains the queues and appends many records at once (column-wise) while holding the lock.
+ * If the queue of a table is full then the backpressure policy decides what happens: the producer waits (BLOCK), the record is ignored (DROP) or the append fails (FAIL).
+ *
+ * The returned future is completed with the id of the appended record (or -1 if the record was dropped).
+ * If a scheduler is specified then its lock is used (so appends do not interfere with evaluations) and it is notified about the appended records.
+ */
+public class AppendQueue {
+
+	public enum Backpressure {
+		BLOCK, // Wait until there is free space in the queue
+		DROP, // Do not append the record (the future returns -1)
+		FAIL, // Do not append the record (the future fails)
+	}
+
+	// Max number of records appended from one queue while the lock is held
+	public static final int BATCH_SIZE = 1024;
+
+	private final Schema schema;
+	public Schema getSchema() {
+		return this.schema;
+	}
+
+	private final SchemaScheduler scheduler;
+
+	// Appends are protected by this lock
+	private final ReentrantLock lock;
+	public ReentrantLock getLock() {
+		return this.lock;
+	}
+
+	private final int capacity;
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	private final Backpressure backpressure;
+	public Backpressure getBackpressure() {
+		return this.backpressure;
+	}
+
+	private final Map<Table, AppendRingBuffer> queues = new ConcurrentHashMap<Table, AppendRingBuffer>();
+
+	private volatile Thread writer;
+	private volatile boolean running;
+	private final AtomicInteger producers = new AtomicInteger(); // Producers which are currently offering records (stop waits for them)
+
+	private final AppendEntry[] batch = new AppendEntry[BATCH_SIZE]; // Records appended by the writer but not completed yet
+	private final Map<Table, ColumnBatch> batches = new HashMap<Table, ColumnBatch>(); // Reused by the writer
+
+	//
+	// Producers
+	//
+
+	public CompletableFuture<Long> append(String table, Record record) {
+		Table tab = this.schema.getTable(table);
+		if(tab == null) {
+			throw new IllegalArgumentException("Table not found: " + table);
+		}
+		return this.append(tab, record);
+	}
+	public CompletableFuture<Long> append(Table table, Record record) {
+		this.producers.incrementAndGet();
+		try {
+			return this.offer(table, record);
+		}
+		finally {
+			this.producers.decrementAndGet();
+		}
+	}
+	protected CompletableFuture<Long> offer(Table table, Record record) {
+		CompletableFuture<Long> future = new CompletableFuture<Long>();
+		if(!this.running) {
+			future.completeExceptionally(new RejectedExecutionException("Append queue is not running."));
+			return future;
+		}
+
+		AppendRingBuffer queue = this.queues.computeIfAbsent(table, t -> new AppendRingBuffer(this.capacity));
+		AppendEntry entry = new AppendEntry(record, future);
+
+		while(!queue.offer(entry)) { // Queue is full
+			if(this.backpressure == Backpressure.DROP) {
+				future.complete(-1L);
+				return future;
+			}
+			else if(this.backpressure == Backpressure.FAIL) {
+				future.completeExceptionally(new RejectedExecutionException("Append queue of table " + table.getName() + " is full."));
+				return future;
+			}
+			else if(!this.running) {
+				future.completeExceptionally(new RejectedExecutionException("Append queue is not running."));
+				return future;
+			}
+			LockSupport.unpark(this.writer);
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(10)); // BLOCK: wait for the writer
+		}
+
+		LockSupport.unpark(this.writer);
+		return future;
+	}
+
+	//
+	// Writer
+	//
+
+	public synchronized void start() {
+		if(this.running) return;
+		this.running = true;
+
+		this.writer = new Thread(() -> this.write(), "append-queue-" + this.schema.getName());
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	// Stop accepting new records and wait until all queued records are appended
+	public synchronized void stop() {
+		if(!this.running) return;
+		this.running = false;
+
+		// Records of producers which have seen the queue running are either appended by the writer or rejected below
+		while(this.producers.get() > 0) {
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(10));
+		}
+
+		LockSupport.unpark(this.writer);
+		try {
+			this.writer.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.writer = null;
+
+		// Records offered concurrently with stopping
+		for(AppendRingBuffer queue : this.queues.values()) {
+			for(AppendEntry entry = queue.poll(); entry != null; entry = queue.poll()) {
+				entry.future.completeExceptionally(new RejectedExecutionException("Append queue is not running."));
+			}
+		}
+	}
+
+	protected void write() {
+		while(true) {
+			boolean stopping = !this.running; // Read before draining so that records offered before stop are not lost
+
+			long count = 0;
+			for(Map.Entry<Table, AppendRingBuffer> entry : this.queues.entrySet()) {
+				count += this.drain(entry.getKey(), entry.getValue());
+			}
+
+			if(count > 0) {
+				if(this.scheduler != null) this.scheduler.appended();
+				continue;
+			}
+
+			if(stopping) break;
+
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1)); // Nothing to append
+		}
+	}
+
+	// Append all records of one queue in batches
+	protected long drain(Table table, AppendRingBuffer queue) {
+		long count = 0;
+		while(true) {
+			AppendEntry entry = queue.poll();
+			if(entry == null) break;
+
+			int length = 0;
+			for(; entry != null; entry = queue.poll()) {
+				this.batch[length++] = entry;
+				if(length >= BATCH_SIZE) break;
+			}
+
+			long start = -1;
+			Exception error = null;
+			this.lock.lock(); // Released from time to time (after each batch)
+			try {
+				ColumnBatch columns = this.toBatch(table, length);
+				start = table.append(columns);
+
+				// Records are durable (according to the log policy) before their futures are completed
+				AppendLog log = this.schema.getAppendLog();
+				if(log != null) log.commit();
+			}
+			catch(Exception e) {
+				error = e;
+			}
+			finally {
+				this.lock.unlock();
+			}
+
+			for(int i=0; i<length; i++) {
+				AppendEntry appended = this.batch[i];
+				this.batch[i] = null;
+				if(error != null) appended.future.completeExceptionally(error);
+				else appended.future.complete(start + i);
+			}
+			count += length;
+		}
+		return count;
+	}
+
+	// Values of the records are converted like in Table.append(Record)
+	protected ColumnBatch toBatch(Table table, int length) {
+		ColumnBatch columns = this.batches.get(table);
+		if(columns == null) {
+			columns = new ColumnBatch(table, BATCH_SIZE);
+			this.batches.put(table, columns);
+		}
+		columns.clear();
+		columns.setLength(length);
+
+		for(Column column : this.schema.getColumns(table.getName())) {
+			Table output = column.getOutput();
+			if(ColumnData.isNumeric(output)) {
+				double[] values = columns.doubles(column);
+				boolean[] nulls = columns.nulls(column);
+				for(int i=0; i<length; i++) {
+					Object value = this.batch[i].record.get(column.getName());
+					if(value == null) nulls[i] = true;
+					else if(value instanceof Number) values[i] = ((Number)value).doubleValue();
+					else if(value instanceof String) values[i] = NumberParser.US.parse((String)value);
+					else values[i] = Double.NaN;
+				}
+			}
+			else if(output != null && output.getName().equalsIgnoreCase("String")) {
+				String[] values = columns.strings(column);
+				for(int i=0; i<length; i++) {
+					Object value = this.batch[i].record.get(column.getName());
+					values[i] = value == null ? "" : value.toString();
+				}
+			}
+			else {
+				Object array = columns.getArrays().get(column);
+				Object[] values = array instanceof Object[] && !(array instanceof String[]) ? (Object[])array : (Object[])columns.put(column, new Object[BATCH_SIZE]);
+				for(int i=0; i<length; i++) {
+					values[i] = this.batch[i].record.get(column.getName());
+				}
+			}
+		}
+
+		return columns;
+	}
+
+	public AppendQueue(Schema schema, int capacity, Backpressure backpressure) {
+		this(schema, null, capacity, backpressure);
+	}
+	public AppendQueue(SchemaScheduler scheduler, int capacity, Backpressure backpressure) {
+		this(scheduler.getSchema(), scheduler, capacity, backpressure);
+	}
+	protected AppendQueue(Schema schema, SchemaScheduler scheduler, int capacity, Backpressure backpressure) {
+		this.schema = schema;
+		this.scheduler = scheduler;
+		this.lock = scheduler != null ? scheduler.getLock() : new ReentrantLock();
+		this.capacity = capacity;
+		this.backpressure = backpressure;
+	}
+}
+
+class AppendEntry {
+	Record record;
+	CompletableFuture<Long> future;
+
+	AppendEntry(Record record, CompletableFuture<Long> future) {
+		this.record = record;
+		this.future = future;
+	}
+}
+
+/**
+ * Bounded queue for many producers and one consumer. Producers reserve a slot by incrementing the tail and publish the element by setting the slot sequence.
+ */
+class AppendRingBuffer {
+
+	private final AppendEntry[] entries;
+	private final AtomicLongArray sequences; // Position for which the slot can be written (equal) or read (one greater)
+	private final int mask;
+
+	private final AtomicLong tail = new AtomicLong(); // Next position to be written (producers)
+	private long head = 0; // Next position to be read (the only consumer)
+
+	public boolean offer(AppendEntry entry) {
+		long pos = this.tail.get();
+		while(true) {
+			long dif = this.sequences.get((int)pos & this.mask) - pos;
+			if(dif == 0) {
+				if(this.tail.compareAndSet(pos, pos + 1)) break; // Slot reserved
+			}
+			else if(dif < 0) {
+				return false; // Full
+			}
+			pos = this.tail.get(); // Another producer was faster
+		}
+
+		int index = (int)pos & this.mask;
+		this.entries[index] = entry;
+		this.sequences.lazySet(index, pos + 1); // Publish
+		return true;
+	}
+
+	public AppendEntry poll() {
+		int index = (int)this.head & this.mask;
+		if(this.sequences.get(index) != this.head + 1) return null; // Empty or not yet published
+
+		AppendEntry entry = this.entries[index];
+		this.entries[index] = null;
+		this.sequences.lazySet(index, this.head + this.entries.length); // Free for the next round
+		this.head++;
+		return entry;
+	}
+
+	public AppendRingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1; // Next power of two
+		this.entries = new AppendEntry[size];
+		this.sequences = new AtomicLongArray(size);
+		for(int i=0; i<size; i++) {
+			this.sequences.set(i, i);
+		}
+		this.mask = size - 1;
+	}
+}
@@ -23,7 +23,9 @@ public class Column {
 		return this.name;
 	}
 	public void setName(String name) {
+		String oldName = this.name;
 		this.name = name;
+		if(this.schema != null) this.schema.columnRenamed(this, oldName); // Update lookup maps
 	}
 	
 	private Table input;
@@ -31,7 +33,9 @@ public class Column {
 		return this.input;
 	}
 	public void setInput(Table table) {
+		Table oldInput = this.input;
 		this.input = table;
+		if(this.schema != null && oldInput != table) this.schema.columnMoved(this, oldInput); // Update lookup maps
 	}
 
 	private Table output;
@@ -39,7 +43,11 @@ public class Column {
 		return this.output;
 	}
 	public void setOutput(Table table) {
+		Class<? extends ColumnStorage> oldKind = ColumnData.storageKind(this.output);
 		this.output = table;
+		if(this.data != null && oldKind != ColumnData.storageKind(this.output)) {
+			this.data.outputChanged(); // Storage depends on the output type
+		}
 	}
 
 	//
@@ -71,6 +79,8 @@ public class Column {
 	}
 	public void setKind(DcColumnKind kind) {
 		this.kind = kind;
+		this.evaluatedVersion = -1; // Full evaluation is needed
+		if(this.schema != null) this.schema.dependenciesChanged(); // Starting columns depend on the kind
 	}
 	public boolean isDerived() {
 		if(this.kind == DcColumnKind.CALC || this.kind == DcColumnKind.ACCU || this.kind == DcColumnKind.LINK || this.kind == DcColumnKind.CLASS) {
@@ -193,15 +203,14 @@ public class Column {
 	}
 
 	public DcError getDependenceError() { // =canEvaluate. Return one error in the dependencies (recursively) including cyclic dependency error
-		for(List<Column> deps = this.getDependencies(); deps.size() > 0; deps = this.getDependencies(deps)) { // Loop on expansion layers of dependencies
-			for(Column dep : deps) {
-				if(dep == this) {
-					return new DcError(DcErrorCode.DEPENDENCY_CYCLE_ERROR, "Cyclic dependency.", "This column formula depends on itself directly or indirectly.");
-				}
-				DcError de = dep.getTranslateError();
-				if(de != null && de.code != DcErrorCode.NONE) {
-					return new DcError(DcErrorCode.TRANSLATE_PROPAGATION_ERROR, "Error in column " + dep.getName(), "This column formula depends on a column with errors.");
-				}
+		DependencyGraph graph = this.schema.getDependencyGraph();
+		if(graph.isCyclic(this)) {
+			return new DcError(DcErrorCode.DEPENDENCY_CYCLE_ERROR, "Cyclic dependency.", "This column formula depends on itself directly or indirectly.");
+		}
+		for(Column dep : graph.getUpstream(this)) {
+			DcError de = dep.getTranslateError();
+			if(de != null && de.code != DcErrorCode.NONE) {
+				return new DcError(DcErrorCode.TRANSLATE_PROPAGATION_ERROR, "Error in column " + dep.getName(), "This column formula depends on a column with errors.");
 			}
 		}
 		return null;
@@ -215,16 +224,16 @@ public class Column {
 	}
 
 	public boolean isDependenceDirty() { // =needEvaluate. True if one of the dependencies (recursively) is dirty (formula change)
-		for(List<Column> deps = this.getDependencies(); deps.size() > 0; deps = this.getDependencies(deps)) { // Loop on expansion layers of dependencies
-			for(Column dep : deps) {
-				if(dep == this) {
-					return true; // Cyclic dependency is also an error and hence dirty
-				}
-				DcError de = dep.getTranslateError();
-				if(de != null && de.code != DcErrorCode.NONE) {					return true; // Any error must be treated as dirty status (propagated further down)
-				}
-				if(dep.isFormulaDirty()) return true;
+		DependencyGraph graph = this.schema.getDependencyGraph();
+		if(graph.isCyclic(this)) {
+			return true; // Cyclic dependency is also an error and hence dirty
+		}
+		for(Column dep : graph.getUpstream(this)) {
+			DcError de = dep.getTranslateError();
+			if(de != null && de.code != DcErrorCode.NONE) {
+				return true; // Any error must be treated as dirty status (propagated further down)
 			}
+			if(dep.isFormulaDirty()) return true;
 		}
 		return false; // All dependencies are up-to-date
 	}
@@ -256,17 +265,21 @@ public class Column {
 	//
 	
 	ColumnEvaluatorCalc evaluatorCalc;
-	public void setEvaluatorCalc(ColumnEvaluatorCalc eval) { this.evaluatorCalc = eval; this.expressionKind = ExpressionKind.NONE; }
+	public void setEvaluatorCalc(ColumnEvaluatorCalc eval) { this.evaluatorCalc = eval; this.expressionKind = ExpressionKind.NONE; this.evaluatedVersion = -1; }
 	ColumnEvaluatorLink evaluatorLink;
-	public void setEvaluatorLink(ColumnEvaluatorLink eval) { this.evaluatorLink = eval; this.expressionKind = ExpressionKind.NONE; }
+	public void setEvaluatorLink(ColumnEvaluatorLink eval) { this.evaluatorLink = eval; this.expressionKind = ExpressionKind.NONE; this.evaluatedVersion = -1; }
 	ColumnEvaluatorAccu evaluatorAccu;
-	public void setEvaluatorAccu(ColumnEvaluatorAccu eval) { this.evaluatorAccu = eval; this.expressionKind = ExpressionKind.NONE; }
+	public void setEvaluatorAccu(ColumnEvaluatorAccu eval) { this.evaluatorAccu = eval; this.expressionKind = ExpressionKind.NONE; this.evaluatedVersion = -1; }
 
 	// Generate Evaluator* from ColumnDefinition*
 	// TODO: What if Evaluator* is provided directly without Formulas/Definition?
 	// - setEvaluator means direct, setFormula means translation
 	public void translate() {
 
+		// To detect changes of the dependency graph
+		List<Column> oldDependencies = new ArrayList<Column>(this.dependencies);
+		boolean hadTranslateErrors = this.hasTranslateErrors();
+
 		this.translateErrors.clear();
 		this.resetDependencies();
 
@@ -302,6 +315,10 @@ public class Column {
 		}
 
 		this.setDependencies(columns);
+
+		if(!oldDependencies.equals(this.dependencies) || hadTranslateErrors != this.hasTranslateErrors()) {
+			this.schema.dependenciesChanged(); // The plan of evaluation has to be re-built
+		}
 	}
 
 	//
@@ -322,6 +339,56 @@ public class Column {
 		else return true;
 	}
 
+	//
+	// Incremental evaluation
+	//
+
+	protected long evaluatedVersion = -1; // Dependency version at the time of the last successful evaluation (-1 if never evaluated)
+
+	protected long evaluatedDataVersion = -1; // Dependency data version at the time of the last successful evaluation
+
+	// Sum of data versions of all dependencies. It grows each time some dependency is changed, appended or deleted.
+	protected long getDependencyDataVersion() {
+		long version = 0;
+		for(Column dep : this.getDependencies()) {
+			version += dep.getData().getDataVersion();
+		}
+		return version;
+	}
+
+	/**
+	 * True if the outputs might be not up-to-date and evaluation is needed.
+	 * It is so if the formula has been changed, some dependency has been changed (outputs, appended or deleted inputs) or this column has new or deleted inputs.
+	 * Changes are propagated downstream because evaluation of a column changes its own data.
+	 */
+	public boolean isEvaluationNeeded() {
+		if(this.evaluatedVersion < 0) return true; // Never evaluated
+		if(this.isFormulaDirty()) return true;
+		if(this.data.getNewRange().getLength() > 0 || this.data.getDelRange().getLength() > 0) return true;
+		return this.evaluatedDataVersion != this.getDependencyDataVersion();
+	}
+
+	protected Range accuRange; // Accu columns: range of fact ids which have been accumulated in the current outputs (null if unknown)
+
+	// Sum of change versions of all dependencies. It grows each time some existing output of some dependency is changed.
+	protected long getDependencyVersion() {
+		long version = 0;
+		for(Column dep : this.getDependencies()) {
+			version += dep.getData().getChangeVersion();
+		}
+		return version;
+	}
+
+	/**
+	 * True if only new inputs have to be evaluated because already evaluated outputs are still valid.
+	 * It is possible if neither the formula nor any existing output of the dependencies have been changed since the last evaluation.
+	 */
+	public boolean isIncremental() {
+		if(this.evaluatedVersion < 0) return false; // Never evaluated
+		if(this.isFormulaDirty()) return false;
+		return this.evaluatedVersion == this.getDependencyVersion();
+	}
+
 	//
 	// Evaluate column
 	//
@@ -360,6 +427,9 @@ public class Column {
 
 		this.setFormulaClean(); // Mark up-to-date if successful
 
+		this.evaluatedVersion = this.getDependencyVersion(); // Remember the state of the dependencies used for evaluation
+		this.evaluatedDataVersion = this.getDependencyDataVersion();
+
 		this.setEvaluateTime(); // Store the time of evaluation
 	}
 
@@ -391,8 +461,9 @@ public class Column {
 		String jaccu = "`accuFormula`: " + JSONObject.valueToString(this.getDefinitionAccu() == null ? "" : this.getDefinitionAccu().getAccuFormula()) + "";
 		String jatbl = "`accuTable`: " + JSONObject.valueToString(this.getDefinitionAccu() == null ? "" : this.getDefinitionAccu().getAccuTable()) + "";
 		String japath = "`accuPath`: " + JSONObject.valueToString(this.getDefinitionAccu() == null ? "" : this.getDefinitionAccu().getAccuPath()) + "";
+		String jretract = "`retractFormula`: " + JSONObject.valueToString(this.getDefinitionAccu() == null ? "" : this.getDefinitionAccu().getRetractFormula()) + "";
 
-		String json = jid + ", " + jname + ", " + jin + ", " + jout + ", " + jdirty + ", " + jstatus + ", " + jkind + ", " + jcalc + ", " + jlink + ", " + jinit + ", " + jaccu + ", " + jatbl + ", " + japath;
+		String json = jid + ", " + jname + ", " + jin + ", " + jout + ", " + jdirty + ", " + jstatus + ", " + jkind + ", " + jcalc + ", " + jlink + ", " + jinit + ", " + jaccu + ", " + jatbl + ", " + japath + ", " + jretract;
 
 		return ("{" + json + "}").replace('`', '"');
 	}
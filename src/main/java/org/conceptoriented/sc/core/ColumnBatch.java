@@ -0,0 +1,133 @@
+package org.conceptoriented.sc.core;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Many rows of one table stored column-wise. It is used for appending many records at once without creating one record object per row.
+ *
+ * Values of each column are stored in one array (double[], long[] or String[]) with the row number as an index. Columns are identified by column objects which are resolved only once.
+ * Columns without values are appended with nulls. Individual null values can be marked in a separate array of flags (for example, for numeric columns).
+ * The same batch can be filled and appended many times because arrays are reused after clear.
+ */
+public class ColumnBatch {
+
+	private final Table table;
+	public Table getTable() {
+		return this.table;
+	}
+
+	private final int capacity; // Max number of rows
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	private int length; // Number of rows
+	public int getLength() {
+		return this.length;
+	}
+	public void setLength(int length) {
+		if(length < 0 || length > this.capacity) {
+			throw new IllegalArgumentException("Batch length must be between 0 and " + this.capacity);
+		}
+		this.length = length;
+	}
+
+	// Column values (arrays with at least length elements)
+	private final Map<Column, Object> arrays = new LinkedHashMap<Column, Object>();
+	protected Map<Column, Object> getArrays() {
+		return this.arrays;
+	}
+
+	// Flags of null values (if a column has them)
+	private final Map<Column, boolean[]> nulls = new LinkedHashMap<Column, boolean[]>();
+	protected Map<Column, boolean[]> getNulls() {
+		return this.nulls;
+	}
+
+	public Column getColumn(String name) {
+		Column column = this.table.getSchema().getColumn(this.table.getName(), name);
+		if(column == null) {
+			throw new IllegalArgumentException("Column not found: " + name);
+		}
+		return column;
+	}
+
+	//
+	// Arrays allocated by the batch
+	//
+
+	public double[] doubles(Column column) {
+		Object array = this.arrays.get(column);
+		if(!(array instanceof double[])) {
+			array = this.put(column, new double[this.capacity]);
+		}
+		return (double[])array;
+	}
+	public long[] longs(Column column) {
+		Object array = this.arrays.get(column);
+		if(!(array instanceof long[])) {
+			array = this.put(column, new long[this.capacity]);
+		}
+		return (long[])array;
+	}
+	public String[] strings(Column column) {
+		Object array = this.arrays.get(column);
+		if(!(array instanceof String[])) {
+			array = this.put(column, new String[this.capacity]);
+		}
+		return (String[])array;
+	}
+
+	public boolean[] nulls(Column column) {
+		boolean[] flags = this.nulls.get(column);
+		if(flags == null) {
+			flags = new boolean[this.capacity];
+			this.nulls.put(column, flags);
+		}
+		return flags;
+	}
+
+	//
+	// Arrays provided by the caller
+	//
+
+	public void set(Column column, double[] values) {
+		this.put(column, values);
+	}
+	public void set(Column column, long[] values) {
+		this.put(column, values);
+	}
+	public void set(Column column, String[] values) {
+		this.put(column, values);
+	}
+
+	protected Object put(Column column, Object array) {
+		if(column.getInput() != this.table) {
+			throw new IllegalArgumentException("Column " + column.getName() + " does not belong to table " + this.table.getName());
+		}
+		if(Array.getLength(array) < this.capacity) {
+			throw new IllegalArgumentException("Array for column " + column.getName() + " is shorter than the batch capacity.");
+		}
+		this.arrays.put(column, array);
+		return array;
+	}
+
+	// Remove all rows but retain the arrays
+	public void clear() {
+		for(Object array : this.arrays.values()) {
+			if(array instanceof Object[]) Arrays.fill((Object[])array, 0, this.length, null); // Release references
+		}
+		for(boolean[] flags : this.nulls.values()) {
+			Arrays.fill(flags, 0, this.length, false);
+		}
+		this.length = 0;
+	}
+
+	public ColumnBatch(Table table, int capacity) {
+		this.table = table;
+		this.capacity = capacity;
+	}
+}
@@ -1,9 +1,7 @@
 package org.conceptoriented.sc.core;
 
-import java.text.NumberFormat;
-import java.text.ParseException;
+import java.io.File;
 import java.util.List;
-import java.util.Locale;
 import java.util.UUID;
 
 /**
@@ -35,14 +33,109 @@ public class ColumnData {
 	// Data
 	//
 	
-	// Array with output values. Very first element corresponds to the oldest existing id. Very last element corresponds to the newest existing id.
+	// Storage with output values. Values are accessed by their ids. Oldest values (with lowest ids) can be released by garbage collection. 
 	// Note that some (oldest, in the beginning) elements can be marked for deletion, that is, it is garbage and they are stored with the only purpose to do evaluation by updating the state of other elements 
-	private Object[] values;
-	
-	// Id of the very first element in the array with 0th offset
-	private long startId = 0;
-	public int id2offset(long id) {
-		return (int) (id - this.startId);
+	// Numeric columns store primitive values while other columns store objects
+	private ColumnStorage values;
+	public ColumnStorage getStorage() {
+		return this.values;
+	}
+
+	protected static boolean isNumeric(Table output) {
+		if(output == null) return false;
+		return output.getName().equalsIgnoreCase("Double") || output.getName().equalsIgnoreCase("Integer");
+	}
+
+	// Outputs are ids of records of another table
+	protected static boolean isLink(Table output) {
+		if(output == null) return false;
+		return !output.isPrimitive();
+	}
+
+	// Kind of storage which is used for the output type (storage has to be re-created if it changes)
+	protected static Class<? extends ColumnStorage> storageKind(Table output) {
+		if(ColumnData.isNumeric(output)) {
+			return ColumnStorageDouble.class;
+		}
+		else if(output != null && output.getName().equalsIgnoreCase("String")) {
+			return ColumnStorageString.class;
+		}
+		else if(ColumnData.isLink(output)) {
+			return ColumnStorageLong.class;
+		}
+		else {
+			return ColumnStorageObject.class;
+		}
+	}
+
+	protected static ColumnStorage createStorage(Table output, long start) {
+		if(ColumnData.isNumeric(output)) {
+			return new ColumnStorageDouble(start);
+		}
+		else if(output != null && output.getName().equalsIgnoreCase("String")) { // Repeated strings are stored once
+			return new ColumnStorageString(start);
+		}
+		else if(ColumnData.isLink(output)) { // Ids without boxing
+			return new ColumnStorageLong(start);
+		}
+		else {
+			return new ColumnStorageObject(start);
+		}
+	}
+
+	// Convenience method. The first element in the path must be this column. Null values (also in the middle of the path) are returned as NaN.
+	public double getDouble(List<Column> columns, long id) {
+		int last = columns.size() - 1;
+		id = ColumnData.follow(columns, last, id);
+		if(id == ColumnStorageLong.NULL) return Double.NaN;
+		return columns.get(last).getData().getDouble(id);
+	}
+
+	// Id reached from the specified id by following the first count columns of the path (NULL if some link is null)
+	protected static long follow(List<Column> columns, int count, long id) {
+		for(int i=0; i<count && id != ColumnStorageLong.NULL; i++) {
+			id = columns.get(i).getData().getLong(id);
+		}
+		return id;
+	}
+
+	// Numeric columns of persistent schemas are stored in files
+	protected ColumnStorage createStorage(long start) {
+		File directory = this.column.getSchema() != null ? this.column.getSchema().getDirectory() : null;
+		if(directory != null && ColumnData.isNumeric(this.column.getOutput())) {
+			return new ColumnStorageMappedDouble(new File(directory, UUID.randomUUID() + ".col"), start, start);
+		}
+		if(directory != null && ColumnData.isLink(this.column.getOutput())) {
+			return new ColumnStorageMappedLong(new File(directory, UUID.randomUUID() + ".col"), start, start);
+		}
+		return ColumnData.createStorage(this.column.getOutput(), start);
+	}
+
+	// File of the storage or null if values are stored in memory
+	public File getFile() {
+		return this.values instanceof ColumnStorageMapped ? ((ColumnStorageMapped)this.values).getFile() : null;
+	}
+
+	// Release resources of the storage. Returns the file which is not used anymore (if any).
+	protected File close() {
+		File file = this.getFile();
+		if(file != null) ((ColumnStorageMapped)this.values).close();
+		return file;
+	}
+
+	// Output type of the column has been changed so the storage has to be re-created and all existing values converted
+	protected void outputChanged() {
+		ColumnStorage storage = this.createStorage(this.delRange.start);
+		storage.setRetention(this.column.getInput().getMaxLength() > 0 ? this.column.getInput().getMaxLength() : -1);
+		storage.allocate(this.newRange.end);
+		for(long i=this.delRange.start; i<this.newRange.end; i++) {
+			storage.setValue(i, this.values.getValue(i));
+		}
+		File oldFile = this.close();
+		if(oldFile != null) this.column.getSchema().fileRemoved(oldFile);
+		this.values = storage;
+		this.changeVersion++;
+		if(this.isIndexed) this.column.getInput().indexChanged(this.column); // Keys might depend on the storage (codes)
 	}
 
 	// It is physical size of all values including deleted, clean and new. It must be equal to the table size
@@ -57,56 +150,156 @@ public class ColumnData {
 	//
 	
 	public Object getValue(long id) {
-		return this.values[id2offset(id)];
+		return this.values.getValue(id);
 	}
 	public void setValue(long id, Object value) {
-		this.values[id2offset(id)] = value;
+		this.values.setValue(id, value);
+		this.isChanged = true; // Mark column as dirty
+		if(id < this.newRange.start || !this.column.isDerived()) this.changeVersion++; // Existing output has been changed (user columns are never cleaned so any change counts)
+		if(this.isIndexed) this.column.getInput().indexChanged(this.column);
+	}
+
+	// Numeric access without boxing. Null values are returned as NaN.
+	public double getDouble(long id) {
+		return this.values.getDouble(id);
+	}
+	public void setDouble(long id, double value) {
+		this.values.setDouble(id, value);
+		this.isChanged = true; // Mark column as dirty
+		if(id < this.newRange.start || !this.column.isDerived()) this.changeVersion++; // Existing output has been changed (user columns are never cleaned so any change counts)
+		if(this.isIndexed) this.column.getInput().indexChanged(this.column);
+	}
+
+	// Access to ids of link columns without boxing. Null values are returned as NULL.
+	public long getLong(long id) {
+		if(this.values instanceof ColumnStorageLong) return ((ColumnStorageLong)this.values).getLong(id);
+		if(this.values instanceof ColumnStorageMappedLong) return ((ColumnStorageMappedLong)this.values).getLong(id);
+		Object out = this.values.getValue(id);
+		return out == null ? ColumnStorageLong.NULL : ((Number)out).longValue();
+	}
+	public void setLong(long id, long value) {
+		if(this.values instanceof ColumnStorageLong) ((ColumnStorageLong)this.values).setLong(id, value);
+		else if(this.values instanceof ColumnStorageMappedLong) ((ColumnStorageMappedLong)this.values).setLong(id, value);
+		else this.values.setValue(id, value == ColumnStorageLong.NULL ? null : (Object)value);
 		this.isChanged = true; // Mark column as dirty
+		if(id < this.newRange.start || !this.column.isDerived()) this.changeVersion++; // Existing output has been changed (user columns are never cleaned so any change counts)
+		if(this.isIndexed) this.column.getInput().indexChanged(this.column);
 	}
+
+	// Bulk numeric access to consecutive ids
+	public void getDoubles(long id, double[] values, int offset, int length) {
+		this.values.getDoubles(id, values, offset, length);
+	}
+	public void setDoubles(long id, double[] values, int offset, int length) {
+		this.values.setDoubles(id, values, offset, length);
+		this.valuesChanged(new Range(id, id + length));
+	}
+
+	// Values in the range have been written directly to the storage (e.g., by concurrent evaluation) and the dirty status has to be updated as if they were set one by one
+	protected void valuesChanged(Range range) {
+		if(range.getLength() == 0) return;
+		this.isChanged = true;
+		if(range.start < this.newRange.start || !this.column.isDerived()) this.changeVersion++;
+		if(this.isIndexed) this.column.getInput().indexChanged(this.column);
+	}
+
+	// This column is used as a key in some index of its table
+	protected boolean isIndexed = false;
 	// Convenience method. The first element in the path must be this column. 
 	public Object getValue(List<Column> columns, long id) {
-		Object out = id;
-		for(Column col : columns) {
-			out = col.getData().getValue((long)out);
-			if(out == null) break;
-		}
-		return out;
+		if(columns.isEmpty()) return id;
+		int last = columns.size() - 1;
+		id = ColumnData.follow(columns, last, id); // Intermediate ids are not boxed
+		if(id == ColumnStorageLong.NULL) return null;
+		return columns.get(last).getData().getValue(id);
 	}
 
 	public long appendValue(Object value) {
 		// Cast the value to type of this column
+		boolean parse = false;
 		if(this.column.getOutput().getName().equalsIgnoreCase("String")) {
 			try { value = value.toString(); } 
 			catch (Exception e) { value = ""; }
 		}
 		else if(this.column.getOutput().getName().equalsIgnoreCase("Double") || this.column.getOutput().getName().equalsIgnoreCase("Integer")) {
-			if(value instanceof String) {
-				try { value = NumberFormat.getInstance(Locale.US).parse(((String)value).trim()); } 
-				catch (ParseException e) { value = Double.NaN; }
-			}
+			parse = value instanceof String;
 		}
 		
 		//
 		// Really append (after the last row) and mark as new
 		//
-		this.values[id2offset(this.newRange.end)] = value;
+		this.values.allocate(this.newRange.end + 1);
+		if(parse) {
+			this.values.setDouble(this.newRange.end, NumberParser.US.parse((String)value)); // Numbers in appended strings are always in US format
+		}
+		else {
+			this.values.setValue(this.newRange.end, value);
+		}
 		this.newRange.end++;
 
 		return this.newRange.end-1;
 	}
 
+	// Append many values at once. The array is double[], long[] or String[] (null means that all values are null). Values with the null flag set are appended as nulls (empty strings in String columns like by appendValue). Returns the first appended id.
+	protected long appendValues(Object array, boolean[] nulls, int length) {
+		long start = this.newRange.end;
+		this.values.allocate(start + length); // New values are null
+
+		Table output = this.column.getOutput();
+		boolean isNumeric = ColumnData.isNumeric(output);
+		boolean isString = output != null && output.getName().equalsIgnoreCase("String");
+
+		if(array instanceof double[]) {
+			double[] values = (double[])array;
+			if(isNumeric) {
+				this.values.setDoubles(start, values, 0, length);
+			}
+			else {
+				for(int i=0; i<length; i++) this.values.setValue(start + i, isString ? Double.toString(values[i]) : values[i]);
+			}
+		}
+		else if(array instanceof long[]) {
+			long[] values = (long[])array;
+			for(int i=0; i<length; i++) {
+				if(isNumeric) this.values.setDouble(start + i, values[i]);
+				else this.values.setValue(start + i, isString ? Long.toString(values[i]) : values[i]);
+			}
+		}
+		else if(array != null) {
+			Object[] values = (Object[])array;
+			for(int i=0; i<length; i++) {
+				Object value = values[i];
+				if(isNumeric && value instanceof String) this.values.setDouble(start + i, NumberParser.US.parse((String)value)); // Without boxing
+				else if(isString) this.values.setValue(start + i, value == null ? "" : value.toString()); // Same conversion as for one value
+				else this.values.setValue(start + i, value);
+			}
+		}
+
+		if(array != null && nulls != null) {
+			for(int i=0; i<length; i++) {
+				if(nulls[i]) this.values.setValue(start + i, isString ? "" : null);
+			}
+		}
+		else if(array == null && isString) { // Null strings are appended as empty strings
+			for(int i=0; i<length; i++) this.values.setValue(start + i, "");
+		}
+
+		this.newRange.end += length;
+
+		return start;
+	}
+
 	// They can be deleted either physically immediately or marked for deletion for future physical deletion (after evalution or gargabge collection)
 	// We delete only oldest records with lowest ids
+	// Deleted records are only marked (moved to del range) and they will be physically deleted by the garbage collection after evaluation
 	public void remove(long count) { // Remove the oldest records with lowest ids
-		// TODO:
+		long start = this.getIdRange().start;
+		remove(new Range(start, start + count));
 	}
 	public void remove(Range range) { // Delete the specified range of input ids starting from clean range and then continue with new range by increasing the available del range (they must be the oldest records with lowest ids)
 		this.delRange = range.uniteWith(this.delRange);
 		this.cleanRange = this.delRange.delFromStartOf(this.cleanRange);
 		this.newRange = this.delRange.delFromStartOf(this.newRange);
-
-		// Optimize
-		this.gc(); 
 	}
 	public void remove() { // Delete all input ids
 		remove(this.getIdRange());
@@ -116,14 +309,8 @@ public class ColumnData {
 		// Remove del range (it might require evaluation)
 		delRange.start = delRange.end;
 
-		// Determine (free, unnecessary) interval to moved
-		long offset = delRange.start - this.startId;
-
-		// New offset
-		this.startId += offset;
-
-		// Move cells backward
-		System.arraycopy(this.values, (int)offset, this.values, 0, (int)this.getLength());
+		// Free whole chunks which store only deleted values (no copying)
+		this.values.release(delRange.start);
 	}
 
 	//
@@ -138,6 +325,18 @@ public class ColumnData {
 	// This flag can be set either directly from outside or by evaluation procedure from inside.
 	// So we need to understand how to use it for dependencies
 
+	// It is incremented each time some output of a non-new (clean or deleted) input or any output of a user column is changed. Appending new values does not change it.
+	// Dependent columns compare it with the version used during their last evaluation in order to decide if only new inputs have to be evaluated.
+	protected long changeVersion = 0;
+	public long getChangeVersion() {
+		return this.changeVersion;
+	}
+
+	// It grows with any change of the data: changed outputs, appended and deleted inputs (ids are never reused so range ends only grow)
+	public long getDataVersion() {
+		return this.changeVersion + this.newRange.end + this.delRange.end;
+	}
+
 
 
 	// Input range changes (additions and deletions of the input set).
@@ -211,16 +410,35 @@ public class ColumnData {
 
 
 
+	// Set the state which has been stored before along with the storage of values. If no storage is specified then values are null (and have to be evaluated for derived columns).
+	protected void restore(Range delRange, Range cleanRange, Range newRange, ColumnStorage storage) {
+		this.delRange = new Range(delRange);
+		this.cleanRange = new Range(cleanRange);
+		this.newRange = new Range(newRange);
+
+		if(storage != null) {
+			this.values = storage;
+		}
+		else {
+			this.values = this.createStorage(this.delRange.start);
+			if(this.column.isDerived()) this.markCleanAsNew();
+		}
+		this.values.setRetention(this.column.getInput().getMaxLength() > 0 ? this.column.getInput().getMaxLength() : -1);
+		this.values.allocate(this.newRange.end);
+	}
+
 	public ColumnData(Column column) {
 		this.column = column;
 		this.id = UUID.randomUUID();
 
-		// Initialize storage
-		this.values = new Object[1000];
-
 		// Initialize ranges according to the input table (all records new)
 		this.newRange = new Range(this.column.getInput().getIdRange());
 		this.delRange = new Range(this.newRange.start, this.newRange.start);
 		this.cleanRange = new Range(this.newRange.start, this.newRange.start);
+
+		// Initialize storage (existing records have null values)
+		this.values = this.createStorage(this.newRange.start);
+		this.values.setRetention(this.column.getInput().getMaxLength() > 0 ? this.column.getInput().getMaxLength() : -1);
+		this.values.allocate(this.newRange.end);
 	}
 }
@@ -20,6 +20,10 @@ public class ColumnDefinitionAccu extends ColumnDefinitionBase {
 	public String getFinFormula() {
 		return this.finFormula;
 	}
+	private String retractFormula; // Inverse of the accu formula which removes one fact from the group value (optional)
+	public String getRetractFormula() {
+		return this.retractFormula;
+	}
 	
 	private String accuTable;
 	public String getAccuTable() {
@@ -56,34 +60,45 @@ public class ColumnDefinitionAccu extends ColumnDefinitionBase {
 		UDE initExpr = null;
 		UDE accuExpr = null;
 		UDE finExpr = null;
+		UDE retractExpr = null;
 
-		if(this.formulaKind == ExpressionKind.EXP4J || this.formulaKind == ExpressionKind.EVALEX) {
+		if(this.formulaKind == ExpressionKind.EXP4J || this.formulaKind == ExpressionKind.EVALEX || this.formulaKind == ExpressionKind.COMPILED) {
 			// Initialization (always initialize - even for empty formula)
 			if(this.initFormula == null || this.initFormula.isEmpty()) { // TODO: We need UDE for constants and for equality (equal to the specified column)
-				initExpr = new UdeJava(column.getDefaultValue().toString(), inputTable);
+				initExpr = this.createExpression(column.getDefaultValue().toString(), inputTable);
 			}
 			else {
-				initExpr = new UdeJava(this.initFormula, inputTable);
+				initExpr = this.createExpression(this.initFormula, inputTable);
 			}
 			this.errors.addAll(initExpr.getTranslateErrors());
 			if(this.hasErrors()) return null; // Cannot proceed
 
 			// Accumulation
-			accuExpr = new UdeJava(this.accuFormula, accuTable);
+			accuExpr = this.createExpression(this.accuFormula, accuTable);
 			this.errors.addAll(accuExpr.getTranslateErrors());
 			if(this.hasErrors()) return null; // Cannot proceed
 
 			// Finalization
 			if(this.finFormula != null && !this.finFormula.isEmpty()) {
-				finExpr = new UdeJava(this.finFormula, inputTable);
+				finExpr = this.createExpression(this.finFormula, inputTable);
 				this.errors.addAll(finExpr.getTranslateErrors());
 				if(this.hasErrors()) return null; // Cannot proceed
 			}
+
+			// Retraction
+			if(this.retractFormula != null && !this.retractFormula.isEmpty()) {
+				retractExpr = this.createExpression(this.retractFormula, accuTable);
+				this.errors.addAll(retractExpr.getTranslateErrors());
+				if(this.hasErrors()) return null; // Cannot proceed
+			}
 		}
 		else if(this.formulaKind == ExpressionKind.UDE) {
 			initExpr = super.createInstance(this.initFormula, schema.getClassLoader());
 			accuExpr = super.createInstance(this.accuFormula, schema.getClassLoader());
 			finExpr = super.createInstance(this.finFormula, schema.getClassLoader());
+			if(this.retractFormula != null && !this.retractFormula.isEmpty()) {
+				retractExpr = super.createInstance(this.retractFormula, schema.getClassLoader());
+			}
 		}
 
 		if(initExpr == null || accuExpr  == null /* || finExpr == null */) { // TODO: finExpr can be null in the case of no formula. We need to fix this and distinguis between errors and having no formula.
@@ -101,15 +116,24 @@ public class ColumnDefinitionAccu extends ColumnDefinitionBase {
 		if(this.hasErrors()) return null; // Cannot proceed
 
 		// Use these objects to create an evaluator
-		ColumnEvaluatorAccu evaluatorAccu = new ColumnEvaluatorAccu(column, initExpr, accuExpr, finExpr, accuPathColumns);
+		ColumnEvaluatorAccu evaluatorAccu = new ColumnEvaluatorAccu(column, initExpr, accuExpr, finExpr, retractExpr, accuPathColumns);
 
 		return evaluatorAccu;
 	}
 
+	protected UdeJava createExpression(String formula, Table table) {
+		if(this.formulaKind == ExpressionKind.COMPILED) return new UdeCompiled(formula, table);
+		return new UdeJava(formula, table);
+	}
+
 	public ColumnDefinitionAccu(String initFormula, String accuFormula, String finFormula, String accuTable, String accuPath, ExpressionKind formulaKind) {
+		this(initFormula, accuFormula, finFormula, null, accuTable, accuPath, formulaKind);
+	}
+	public ColumnDefinitionAccu(String initFormula, String accuFormula, String finFormula, String retractFormula, String accuTable, String accuPath, ExpressionKind formulaKind) {
 		this.initFormula = initFormula;
 		this.accuFormula = accuFormula;
 		this.finFormula = finFormula;
+		this.retractFormula = retractFormula;
 		this.accuTable = accuTable;
 		this.accuPath = accuPath;
 
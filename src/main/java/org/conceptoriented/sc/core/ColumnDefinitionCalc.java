@@ -22,6 +22,9 @@ public class ColumnDefinitionCalc extends ColumnDefinitionBase {
 		if(this.formulaKind == ExpressionKind.EXP4J || this.formulaKind == ExpressionKind.EVALEX) {
 			expr = new UdeJava(this.formula, inputTable);
 		}
+		else if(this.formulaKind == ExpressionKind.COMPILED) {
+			expr = new UdeCompiled(this.formula, inputTable);
+		}
 		else if(this.formulaKind == ExpressionKind.UDE) {
 			expr = super.createInstance(this.formula, schema.getClassLoader());
 		}
@@ -2,6 +2,9 @@ package org.conceptoriented.sc.core;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import org.apache.commons.lang3.tuple.Pair;
 
@@ -49,14 +52,19 @@ abstract class ColumnEvaluatorBase implements ColumnEvaluator { // Convenience c
 	}
 
 	protected void evaluateExpr(UDE expr, List<Column> accuLinkPath) {
+		Table mainTable = accuLinkPath == null ? this.column.getInput() : accuLinkPath.get(0).getInput(); // Loop/scan table
+
+		// ACCU: Full re-evaluation scans all existing facts. Incremental accumulation passes only new or deleted facts.
+		this.evaluateExpr(expr, accuLinkPath, mainTable.getIdRange());
+	}
+	protected void evaluateExpr(UDE expr, List<Column> accuLinkPath, Range mainRange) { // Evaluate only the specified range of ids of the loop table
 		
 		errors.clear(); // Clear state
 
-		Table mainTable = accuLinkPath == null ? this.column.getInput() : accuLinkPath.get(0).getInput(); // Loop/scan table
-
-		// ACCU: Currently we do full re-evaluate by resetting the accu column outputs and then making full scan through all existing facts
-		// ACCU: The optimal approach is to apply negative accu function for removed elements and then positive accu function for added elements
-		Range mainRange = mainTable.getIdRange();
+		if(accuLinkPath == null && expr instanceof UDEBatch && ColumnData.isNumeric(this.column.getOutput())) {
+			this.evaluateExprBatch((UDEBatch)expr, mainRange);
+			return;
+		}
 
 		// Get all necessary parameters and prepare (resolve) the corresponding data (function) objects for reading values
 		List<List<Column>> paramPaths = expr.getResolvedParamPaths();
@@ -66,7 +74,8 @@ abstract class ColumnEvaluatorBase implements ColumnEvaluator { // Convenience c
 
 		for(long i=mainRange.start; i<mainRange.end; i++) {
 			// Find group [ACCU-specific]
-			Long g = accuLinkPath == null ? i : (Long) accuLinkPath.get(0).getData().getValue(accuLinkPath, i);
+			long g = accuLinkPath == null ? i : ColumnData.follow(accuLinkPath, accuLinkPath.size(), i);
+			if(g == ColumnStorageLong.NULL || g < this.column.getData().getDelRange().start) continue; // No group or it has been already removed
 
 			// Read all parameter values
 			int paramNo = 0;
@@ -91,15 +100,127 @@ abstract class ColumnEvaluatorBase implements ColumnEvaluator { // Convenience c
 	}
 
 
-	protected void evaluateLink(List<Pair<Column,UDE>> exprs) {
+	public static final int BATCH_SIZE = 1024; // Number of rows passed to batch expressions in one call
+
+	// Evaluate the expression by passing slices of columns (not individual values)
+	protected void evaluateExprBatch(UDEBatch expr, Range mainRange) {
+		ColumnData data = this.column.getData();
+		DcError error = ColumnEvaluatorBase.evaluateBatch(expr, mainRange, data.getStorage());
+		if(error != null) {
+			errors.add(error);
+		}
+		data.valuesChanged(mainRange);
+	}
+	// Values are written directly to the storage so the dirty status of the column has to be updated by the caller
+	protected static DcError evaluateBatch(UDEBatch expr, Range mainRange, ColumnStorage storage) {
+
+		List<List<Column>> paramPaths = expr.getResolvedParamPaths();
+		double[][] paramValues = new double[paramPaths.size()][BATCH_SIZE];
+		double[] out = new double[BATCH_SIZE];
+
+		for(long start=mainRange.start; start<mainRange.end; start+=BATCH_SIZE) {
+			int length = (int)Long.min(BATCH_SIZE, mainRange.end - start);
+
+			// Read all parameter values
+			for(int p=0; p<paramValues.length; p++) {
+				List<Column> paramPath = paramPaths.get(p);
+				if(paramPath.size() == 1) { // Copy directly from the storage
+					paramPath.get(0).getData().getDoubles(start, paramValues[p], 0, length);
+				}
+				else {
+					for(int i=0; i<length; i++) {
+						paramValues[p][i] = paramPath.get(0).getData().getDouble(paramPath, start + i);
+					}
+				}
+			}
+
+			// Read current out values
+			storage.getDoubles(start, out, 0, length);
+
+			// Evaluate
+			expr.evaluateBatch(paramValues, out, 0, length);
+			if(expr.getEvaluateError() != null) {
+				return expr.getEvaluateError();
+			}
+
+			// Update output
+			storage.setDoubles(start, out, 0, length);
+		}
+
+		return null;
+	}
+
+	// Evaluate calc expression by splitting the range into chunk-aligned partitions which are processed concurrently. Return false if it is not possible.
+	// Each partition gets its own copy of the expression because expressions store parameter values and errors in their fields
+	// Copying translates the formula again so there is at most one partition (with many consecutive chunks) per worker
+	// Only a ForkJoinPool is used because the calling thread might be a worker of the same pool (layer evaluation) and work stealing prevents it from being blocked
+	protected boolean evaluateExprConcurrently(UDE expr, Range mainRange) {
+		ExecutorService executor = this.column.getSchema().getExecutor();
+		if(!(executor instanceof ForkJoinPool)) return false;
+		if(!(expr instanceof UdeJava)) return false; // Custom expressions might be not thread-safe and cannot be copied
+		if(mainRange.getLength() < 2 * ColumnStorageBase.CHUNK_SIZE) return false; // Not worth it
 
 		errors.clear(); // Clear state
 
-		Table typeTable = this.column.getOutput();
+		ColumnData data = this.column.getData();
+		ColumnStorage storage = data.getStorage();
+		UdeJava ude = (UdeJava)expr;
+
+		long firstChunk = mainRange.start >>> ColumnStorageBase.CHUNK_BITS;
+		long chunkCount = ((mainRange.end - 1) >>> ColumnStorageBase.CHUNK_BITS) - firstChunk + 1;
+		int partitionCount = (int)Long.min(((ForkJoinPool)executor).getParallelism(), chunkCount);
+
+		List<ForkJoinTask<List<DcError>>> tasks = new ArrayList<ForkJoinTask<List<DcError>>>();
+		for(int n = 0; n < partitionCount; n++) {
+			long endChunk = firstChunk + chunkCount * (n + 1) / partitionCount;
+			long start = n == 0 ? mainRange.start : (firstChunk + chunkCount * n / partitionCount) << ColumnStorageBase.CHUNK_BITS;
+			long end = n == partitionCount - 1 ? mainRange.end : endChunk << ColumnStorageBase.CHUNK_BITS; // Partitions never share chunks
+			Range partition = new Range(start, end);
+
+			tasks.add(((ForkJoinPool)executor).submit(() -> {
+				List<DcError> partitionErrors = new ArrayList<DcError>();
+				UDE partitionExpr = ude.copy();
+
+				if(partitionExpr instanceof UDEBatch && ColumnData.isNumeric(this.column.getOutput())) {
+					DcError error = ColumnEvaluatorBase.evaluateBatch((UDEBatch)partitionExpr, partition, storage);
+					if(error != null) partitionErrors.add(error);
+					return partitionErrors;
+				}
+
+				List<List<Column>> paramPaths = partitionExpr.getResolvedParamPaths();
+				Object[] paramValues = new Object[paramPaths.size()];
+				for(long i=partition.start; i<partition.end; i++) {
+					for(int p=0; p<paramValues.length; p++) {
+						paramValues[p] = paramPaths.get(p).get(0).data.getValue(paramPaths.get(p), i);
+					}
+
+					Object result = partitionExpr.evaluate(paramValues, storage.getValue(i));
+					if(partitionExpr.getEvaluateError() != null) {
+						partitionErrors.add(partitionExpr.getEvaluateError());
+						break;
+					}
+
+					storage.setValue(i, result); // Dirty status is updated once for all partitions
+				}
+				return partitionErrors;
+			}));
+		}
+
+		// Wait for all partitions and merge their errors
+		for(ForkJoinTask<List<DcError>> task : tasks) {
+			errors.addAll(task.join());
+		}
+
+		data.valuesChanged(mainRange);
+
+		return true;
+	}
 
-		Table mainTable = this.column.getInput();
-		// Currently we make full scan by re-evaluating all existing input ids
-		Range mainRange = this.column.getData().getIdRange();
+	protected void evaluateLink(List<Pair<Column,UDE>> exprs, Range mainRange) { // Evaluate only the specified range of input ids
+
+		errors.clear(); // Clear state
+
+		Table typeTable = this.column.getOutput();
 
 		// Each item in this lists is for one member expression 
 		// We use lists and not map because want to use common index (faster) for access and not key (slower) which is important for frequent accesses in a long loop.
@@ -108,6 +229,13 @@ abstract class ColumnEvaluatorBase implements ColumnEvaluator { // Convenience c
 		List< Object > rhsResults = new ArrayList< Object >();
 		Record outRecord = new Record(); // All output values for all expressions along with column names (is used by the search)
 
+		// Search in the type table is done using a hash index on the lhs columns (created once and then maintained by the table)
+		List<String> lhsNames = new ArrayList<String>();
+		for(Pair<Column,UDE> mmbr : exprs) {
+			lhsNames.add(mmbr.getLeft().getName());
+		}
+		typeTable.createIndex(lhsNames);
+
 		// Initialize items of these lists for each member expression
 		for(Pair<Column,UDE> mmbr : exprs) {
 			UDE eval = mmbr.getRight();
@@ -150,17 +278,19 @@ abstract class ColumnEvaluatorBase implements ColumnEvaluator { // Convenience c
 				mmbrNo++; // Iterate
 			}
 
-			// Find element in the type table which corresponds to these expression results (can be null if not found and not added)
-			Object out = typeTable.find(outRecord, true);
+			// Find element in the type table which corresponds to these expression results (-1 if not found and not added)
+			long out = typeTable.find(outRecord, true);
 			
-			// Update output
-			this.column.getData().setValue(i, out);
+			// Update output (not found is stored as null)
+			this.column.getData().setLong(i, out);
 		}
 
 	}
 
 	protected void evaluateExprDefault() {
-		Range mainRange = this.column.getData().getIdRange(); // All dirty/new rows
+		this.evaluateExprDefault(this.column.getData().getIdRange());
+	}
+	protected void evaluateExprDefault(Range mainRange) {
 		Object defaultValue = this.column.getDefaultValue();
 		for(long i=mainRange.start; i<mainRange.end; i++) {
 			this.column.getData().setValue(i, defaultValue);
@@ -196,12 +326,15 @@ class ColumnEvaluatorCalc extends ColumnEvaluatorBase {
 
 	@Override
 	public void evaluate() {
+		// Only new rows are evaluated if the existing outputs are still valid (otherwise all rows)
+		Range mainRange = this.column.isIncremental() ? this.column.getData().getNewRange() : this.column.getData().getIdRange();
+
 		// Evaluate calc expression
 		if(this.ude == null) { // Default
-			super.evaluateExprDefault();
+			super.evaluateExprDefault(mainRange);
 		}
-		else {
-			super.evaluateExpr(ude, null);
+		else if(!super.evaluateExprConcurrently(ude, mainRange)) {
+			super.evaluateExpr(ude, null, mainRange);
 		}
 	}
 
@@ -224,9 +357,19 @@ class ColumnEvaluatorCalc extends ColumnEvaluatorBase {
 class ColumnEvaluatorLink extends ColumnEvaluatorBase {
 	List<Pair<Column,UDE>> udes = new ArrayList<Pair<Column,UDE>>();
 
+	long outputStart = -1; // Start of the output table ids at the last evaluation
+
 	@Override
 	public void evaluate() {
-		super.evaluateLink(udes);
+		// Only new rows are evaluated if the existing outputs are still valid (otherwise all rows)
+		// Existing outputs might point to deleted records of the output table so they are re-linked after any deletion
+		Table typeTable = this.column.getOutput();
+		boolean outputDeleted = typeTable.getIdRange().start != this.outputStart;
+		Range mainRange = this.column.isIncremental() && !outputDeleted ? this.column.getData().getNewRange() : this.column.getData().getIdRange();
+
+		super.evaluateLink(udes, mainRange);
+
+		this.outputStart = typeTable.getIdRange().start;
 	}
 
 	@Override
@@ -263,29 +406,83 @@ class ColumnEvaluatorAccu extends ColumnEvaluatorBase {
 	UDE initExpr;
 	UDE accuExpr;
 	UDE finExpr;
+	UDE retractExpr; // Inverse of accu expression (optional). It is used to remove deleted facts from group values.
 	
 	List<Column> accuPathColumns;
 
 	@Override
 	public void evaluate() {
-		// Initialization
-		if(this.initExpr == null) { // Default
-			super.evaluateExprDefault();
+		Table factTable = this.accuPathColumns.get(0).getInput();
+		Range factRange = new Range(factTable.getIdRange());
+		boolean delta = this.canEvaluateDelta(factTable);
+		Range accuRange = this.column.accuRange;
+
+		// Group values are unknown until the evaluation succeeds (an error forces a full evaluation next time)
+		this.column.accuRange = null;
+
+		if(delta) {
+
+			// Initialization of new groups only
+			if(this.initExpr == null) { // Default
+				super.evaluateExprDefault(this.column.getData().getNewRange());
+			}
+			else {
+				super.evaluateExpr(this.initExpr, null, this.column.getData().getNewRange());
+				if(!this.errors.isEmpty()) return;
+			}
+
+			// Retraction of deleted facts (only those which have been accumulated; facts appended and deleted between evaluations are ignored)
+			long retractEnd = Long.min(factRange.start, accuRange.end);
+			if(accuRange.start < retractEnd) {
+				super.evaluateExpr(this.retractExpr, this.accuPathColumns, new Range(accuRange.start, retractEnd));
+				if(!this.errors.isEmpty()) return;
+			}
+
+			// Accumulation of new facts
+			super.evaluateExpr(this.accuExpr, this.accuPathColumns, new Range(Long.max(accuRange.end, factRange.start), factRange.end));
+			if(!this.errors.isEmpty()) return;
 		}
 		else {
-			super.evaluateExpr(this.initExpr, null);
+			// Initialization
+			if(this.initExpr == null) { // Default
+				super.evaluateExprDefault();
+			}
+			else {
+				super.evaluateExpr(this.initExpr, null);
+				if(!this.errors.isEmpty()) return;
+			}
+			
+			// Accumulation
+			super.evaluateExpr(this.accuExpr, this.accuPathColumns);
+			if(!this.errors.isEmpty()) return;
+
+			// Finalization
+			if(this.finExpr == null) { // Default
+				; // No finalization if not specified
+			}
+			else {
+				super.evaluateExpr(this.finExpr, null);
+				if(!this.errors.isEmpty()) return;
+			}
 		}
+
+		this.column.accuRange = factRange; // These facts are now accumulated in the group values
+	}
+
+	// Whether it is enough to add new facts and retract deleted facts instead of re-computing all groups
+	protected boolean canEvaluateDelta(Table factTable) {
+		if(!this.column.isIncremental()) return false; // Formula or existing data changed
+		if(this.finExpr != null) return false; // Finalization is applied to the final group values and cannot be undone
 		
-		// Accumulation
-		super.evaluateExpr(this.accuExpr, this.accuPathColumns);
+		Range accuRange = this.column.accuRange;
+		if(accuRange == null) return false;
 
-		// Finalization
-		if(this.finExpr == null) { // Default
-			; // No finalization if not specified
-		}
-		else {
-			super.evaluateExpr(this.finExpr, null);
+		if(accuRange.start < factTable.getIdRange().start) { // Some accumulated facts have been deleted
+			if(this.retractExpr == null) return false;
+			if(accuRange.start < factTable.getDelRange().start) return false; // Deleted facts have been already physically removed
 		}
+
+		return true;
 	}
 
 	@Override
@@ -307,6 +504,11 @@ class ColumnEvaluatorAccu extends ColumnEvaluatorBase {
 				if(!ret.contains(col)) ret.add(col);
 			}
 		}
+		if(this.retractExpr != null) {
+			for(Column col : super.getExpressionDependencies(this.retractExpr)) {
+				if(!ret.contains(col)) ret.add(col);
+			}
+		}
 
 		for(Column col : this.accuPathColumns) {
 			if(!ret.contains(col)) ret.add(col);
@@ -316,11 +518,15 @@ class ColumnEvaluatorAccu extends ColumnEvaluatorBase {
 	}
 
 	public ColumnEvaluatorAccu(Column column, UDE initExpr, UDE accuExpr, UDE finExpr, List<Column> accuPathColumns) {
+		this(column, initExpr, accuExpr, finExpr, null, accuPathColumns);
+	}
+	public ColumnEvaluatorAccu(Column column, UDE initExpr, UDE accuExpr, UDE finExpr, UDE retractExpr, List<Column> accuPathColumns) {
 		super(column);
 
 		this.initExpr = initExpr;
 		this.accuExpr = accuExpr;
 		this.finExpr = finExpr;
+		this.retractExpr = retractExpr;
 
 		this.accuPathColumns = accuPathColumns;
 	}
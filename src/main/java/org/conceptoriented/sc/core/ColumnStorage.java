@@ -0,0 +1,962 @@
+package org.conceptoriented.sc.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * It is a physical container for output values of one column.
+ * It knows how to store and retrieve values by their ids but it is unaware of ranges and the dirty status which are managed by the column data object.
+ *
+ * Different implementations store values in different native forms.
+ * Generic implementation stores objects (one object per value) while specialized implementations store primitive values without boxing.
+ * Each implementation provides both object and primitive accessors and converts values if necessary.
+ */
+public interface ColumnStorage {
+	public Object getValue(long id);
+	public void setValue(long id, Object value);
+
+	public double getDouble(long id);
+	public void setDouble(long id, double value);
+
+	// Bulk access to consecutive ids starting from the specified id. Values are copied from/to the array starting from the offset.
+	public void getDoubles(long id, double[] values, int offset, int length);
+	public void setDoubles(long id, double[] values, int offset, int length);
+
+	// Make all ids before the specified end id accessible (new values are null)
+	public void allocate(long end);
+	// Ids before the specified start id are not needed anymore and the memory can be freed
+	public void release(long start);
+
+	// Retention mode for storing at most the specified number of values (negative means no limit). Released memory is reused for new values.
+	public void setRetention(long maxLength);
+
+	// Read-only copy of the current values. Later changes of this storage are not visible in the copy.
+	public ColumnStorage snapshot();
+}
+
+/**
+ * Values are stored in fixed-size chunks which are allocated when the storage grows and freed when old values are released.
+ * Existing values are never copied.
+ * Chunks are stored in a circular directory where chunk number n (with ids from n*CHUNK_SIZE to (n+1)*CHUNK_SIZE) is stored in slot n modulo the directory length.
+ *
+ * Snapshots share chunks with the storage (copy on write). Only the directory is copied when a snapshot is created and all its chunks are marked as shared.
+ * A shared chunk is copied before it is changed for the first time so the snapshot continues to see the old values.
+ */
+abstract class ColumnStorageBase implements ColumnStorage, Cloneable {
+
+	public static final int CHUNK_BITS = 14;
+	public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	public static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	protected Object[] chunks = new Object[8]; // Length is always power of 2
+
+	protected long startChunk; // Number of the first allocated chunk
+	protected long endChunk; // Number of the chunk after the last allocated chunk
+
+	protected final Object chunk(long id) {
+		return this.chunks[(int)((id >>> CHUNK_BITS) & (this.chunks.length - 1))];
+	}
+	// Chunk which can be changed (it is not shared with snapshots)
+	protected final Object writableChunk(long id) {
+		if(this.shared == null) throw new UnsupportedOperationException("Snapshot storage is read-only.");
+		int slot = (int)((id >>> CHUNK_BITS) & (this.chunks.length - 1));
+		if(this.shared[slot]) {
+			this.chunks[slot] = this.copyChunk(this.chunks[slot]);
+			this.shared[slot] = false;
+		}
+		return this.chunks[slot];
+	}
+	protected static int index(long id) {
+		return (int)(id & CHUNK_MASK);
+	}
+
+	protected abstract Object newChunk();
+	protected Object newChunk(long number) { // Chunk for the specified ids
+		return this.newChunk();
+	}
+	protected abstract void clearChunk(Object chunk); // Make all values null
+	protected abstract Object copyChunk(Object chunk);
+
+	@Override
+	public void allocate(long end) {
+		if(this.shared == null) throw new UnsupportedOperationException("Snapshot storage is read-only.");
+		long needed = (end + CHUNK_SIZE - 1) >>> CHUNK_BITS;
+		while(this.endChunk < needed) {
+			if(this.endChunk - this.startChunk == this.chunks.length) {
+				this.growDirectory();
+			}
+			Object chunk = this.spareCount > 0 ? this.spareChunks[--this.spareCount] : this.newChunk(this.endChunk);
+			this.chunks[(int)(this.endChunk & (this.chunks.length - 1))] = chunk;
+			this.shared[(int)(this.endChunk & (this.chunks.length - 1))] = false;
+			this.endChunk++;
+		}
+	}
+
+	@Override
+	public void getDoubles(long id, double[] values, int offset, int length) {
+		for(int i = 0; i < length; i++) {
+			values[offset + i] = this.getDouble(id + i);
+		}
+	}
+	@Override
+	public void setDoubles(long id, double[] values, int offset, int length) {
+		for(int i = 0; i < length; i++) {
+			this.setDouble(id + i, values[offset + i]);
+		}
+	}
+
+	@Override
+	public void release(long start) {
+		if(this.shared == null) throw new UnsupportedOperationException("Snapshot storage is read-only.");
+		long first = start >>> CHUNK_BITS; // Chunk with this id is still needed
+		while(this.startChunk < first && this.startChunk < this.endChunk) {
+			int slot = (int)(this.startChunk & (this.chunks.length - 1));
+			if(this.spareChunks != null && this.spareCount < this.spareChunks.length && !this.shared[slot]) { // Keep for reuse (shared chunks are still used by snapshots)
+				this.clearChunk(this.chunks[slot]);
+				this.spareChunks[this.spareCount++] = this.chunks[slot];
+			}
+			this.chunks[slot] = null;
+			this.shared[slot] = false;
+			this.startChunk++;
+		}
+		if(this.startChunk == this.endChunk) { // Empty storage can start from any chunk
+			this.startChunk = first;
+			this.endChunk = first;
+		}
+	}
+
+	//
+	// Retention mode. The chunk directory is allocated for the whole window and released chunks are reused so that the storage works as a circular buffer.
+	//
+
+	protected Object[] spareChunks; // Released chunks which can be reused
+	protected int spareCount;
+
+	@Override
+	public void setRetention(long maxLength) {
+		if(this.shared == null) throw new UnsupportedOperationException("Snapshot storage is read-only.");
+		if(maxLength < 0) {
+			this.spareChunks = null;
+			this.spareCount = 0;
+			return;
+		}
+
+		// Deleted values are stored until the next garbage collection so the window has to store twice as many values plus one partial chunk
+		long windowChunks = 2 * ((maxLength + CHUNK_SIZE - 1) >>> CHUNK_BITS) + 1;
+		while(this.chunks.length < windowChunks) {
+			this.growDirectory();
+		}
+
+		Object[] spare = new Object[this.chunks.length];
+		int count = 0;
+		for(int i = 0; i < this.spareCount && count < spare.length; i++) {
+			spare[count++] = this.spareChunks[i];
+		}
+		this.spareChunks = spare;
+		this.spareCount = count;
+	}
+
+	// Only references to chunks are copied (not values)
+	private void growDirectory() {
+		Object[] newChunks = new Object[this.chunks.length * 2];
+		boolean[] newShared = new boolean[newChunks.length];
+		for(long n = this.startChunk; n < this.endChunk; n++) {
+			newChunks[(int)(n & (newChunks.length - 1))] = this.chunks[(int)(n & (this.chunks.length - 1))];
+			newShared[(int)(n & (newChunks.length - 1))] = this.shared[(int)(n & (this.chunks.length - 1))];
+		}
+		this.chunks = newChunks;
+		this.shared = newShared;
+	}
+
+	//
+	// Snapshots
+	//
+
+	protected boolean[] shared = new boolean[8]; // Chunk in this slot is used also by some snapshot and must be copied before change
+
+	@Override
+	public ColumnStorage snapshot() {
+		ColumnStorageBase copy;
+		try {
+			copy = (ColumnStorageBase)super.clone();
+		}
+		catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+		copy.chunks = this.chunks.clone();
+		copy.shared = null; // Snapshot is never changed
+		copy.spareChunks = null;
+		copy.spareCount = 0;
+
+		for(long n = this.startChunk; n < this.endChunk; n++) {
+			this.shared[(int)(n & (this.chunks.length - 1))] = true;
+		}
+
+		return copy;
+	}
+
+	public ColumnStorageBase(long start) {
+		this.startChunk = start >>> CHUNK_BITS;
+		this.endChunk = this.startChunk;
+	}
+}
+
+/**
+ * Generic storage where every value is stored as an object.
+ */
+class ColumnStorageObject extends ColumnStorageBase {
+
+	@Override
+	protected Object newChunk() {
+		return new Object[CHUNK_SIZE];
+	}
+	@Override
+	protected void clearChunk(Object chunk) {
+		Arrays.fill((Object[])chunk, null);
+	}
+	@Override
+	protected Object copyChunk(Object chunk) {
+		return ((Object[])chunk).clone();
+	}
+
+	@Override
+	public Object getValue(long id) {
+		return ((Object[])this.chunk(id))[index(id)];
+	}
+	@Override
+	public void setValue(long id, Object value) {
+		((Object[])this.writableChunk(id))[index(id)] = value;
+	}
+
+	@Override
+	public double getDouble(long id) {
+		Object value = this.getValue(id);
+		if(value instanceof Number) return ((Number)value).doubleValue();
+		return Double.NaN;
+	}
+	@Override
+	public void setDouble(long id, double value) {
+		this.setValue(id, value);
+	}
+
+	public ColumnStorageObject(long start) {
+		super(start);
+	}
+}
+
+/**
+ * Numeric storage where values are stored as primitive doubles.
+ * Null values are marked in a separate bitmap and hence they are distinguished from NaN values.
+ */
+class ColumnStorageDouble extends ColumnStorageBase {
+
+	static class Chunk {
+		final double[] values = new double[CHUNK_SIZE];
+		final long[] nulls = new long[CHUNK_SIZE >>> 6]; // Bit is set if the value is null
+		void clear() {
+			Arrays.fill(this.values, Double.NaN);
+			Arrays.fill(this.nulls, -1L); // All values are null
+		}
+		Chunk() {
+			this.clear();
+		}
+	}
+
+	@Override
+	protected Object newChunk() {
+		return new Chunk();
+	}
+	@Override
+	protected void clearChunk(Object chunk) {
+		((Chunk)chunk).clear();
+	}
+	@Override
+	protected Object copyChunk(Object chunk) {
+		Chunk c = new Chunk();
+		System.arraycopy(((Chunk)chunk).values, 0, c.values, 0, CHUNK_SIZE);
+		System.arraycopy(((Chunk)chunk).nulls, 0, c.nulls, 0, c.nulls.length);
+		return c;
+	}
+
+	@Override
+	public Object getValue(long id) {
+		Chunk c = (Chunk)this.chunk(id);
+		int i = index(id);
+		if((c.nulls[i >>> 6] & (1L << i)) != 0) return null;
+		return c.values[i];
+	}
+	@Override
+	public void setValue(long id, Object value) {
+		Chunk c = (Chunk)this.writableChunk(id);
+		int i = index(id);
+
+		if(value == null) {
+			c.values[i] = Double.NaN;
+			c.nulls[i >>> 6] |= (1L << i);
+			return;
+		}
+
+		if(value instanceof Number) {
+			c.values[i] = ((Number)value).doubleValue();
+		}
+		else { // Non-numeric values cannot be represented
+			c.values[i] = Double.NaN;
+		}
+		c.nulls[i >>> 6] &= ~(1L << i);
+	}
+
+	@Override
+	public double getDouble(long id) {
+		return ((Chunk)this.chunk(id)).values[index(id)]; // Null values are stored as NaN
+	}
+	@Override
+	public void setDouble(long id, double value) {
+		Chunk c = (Chunk)this.writableChunk(id);
+		int i = index(id);
+		c.values[i] = value;
+		c.nulls[i >>> 6] &= ~(1L << i);
+	}
+
+	// Values are copied chunk by chunk
+	@Override
+	public void getDoubles(long id, double[] values, int offset, int length) {
+		while(length > 0) {
+			int i = index(id);
+			int count = Integer.min(length, CHUNK_SIZE - i);
+			System.arraycopy(((Chunk)this.chunk(id)).values, i, values, offset, count);
+			id += count;
+			offset += count;
+			length -= count;
+		}
+	}
+	@Override
+	public void setDoubles(long id, double[] values, int offset, int length) {
+		while(length > 0) {
+			Chunk c = (Chunk)this.writableChunk(id);
+			int i = index(id);
+			int count = Integer.min(length, CHUNK_SIZE - i);
+			System.arraycopy(values, offset, c.values, i, count);
+			for(int j = i; j < i + count; j++) { // No nulls
+				c.nulls[j >>> 6] &= ~(1L << j);
+			}
+			id += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	public ColumnStorageDouble(long start) {
+		super(start);
+	}
+}
+
+/**
+ * Numeric storage where values are stored as primitive longs, for example, ids or time stamps.
+ * Null values are represented by a special (negative) value and hence only non-negative values can be stored.
+ */
+class ColumnStorageLong extends ColumnStorageBase {
+
+	public static final long NULL = -1L;
+
+	@Override
+	protected Object newChunk() {
+		long[] chunk = new long[CHUNK_SIZE];
+		Arrays.fill(chunk, NULL);
+		return chunk;
+	}
+	@Override
+	protected void clearChunk(Object chunk) {
+		Arrays.fill((long[])chunk, NULL);
+	}
+	@Override
+	protected Object copyChunk(Object chunk) {
+		return ((long[])chunk).clone();
+	}
+
+	public long getLong(long id) {
+		return ((long[])this.chunk(id))[index(id)];
+	}
+	public void setLong(long id, long value) {
+		((long[])this.writableChunk(id))[index(id)] = value;
+	}
+
+	@Override
+	public Object getValue(long id) {
+		long value = this.getLong(id);
+		if(value == NULL) return null;
+		return value;
+	}
+	@Override
+	public void setValue(long id, Object value) {
+		if(value instanceof Number) {
+			this.setLong(id, ((Number)value).longValue());
+		}
+		else {
+			this.setLong(id, NULL);
+		}
+	}
+
+	@Override
+	public double getDouble(long id) {
+		long value = this.getLong(id);
+		if(value == NULL) return Double.NaN;
+		return value;
+	}
+	@Override
+	public void setDouble(long id, double value) {
+		this.setLong(id, Double.isNaN(value) ? NULL : (long)value);
+	}
+
+	public ColumnStorageLong(long start) {
+		super(start);
+	}
+}
+
+/**
+ * Dictionary-encoded storage for columns with many repeated values (e.g., strings with categories or device ids).
+ * Each value is stored as an int code and distinct values are stored only once in the dictionary. Null values are represented by a special (negative) code.
+ *
+ * Equal values have equal codes so values can be compared by comparing their codes.
+ * The dictionary only grows (values which are not used anymore are not removed) and it is shared with snapshots.
+ */
+class ColumnStorageString extends ColumnStorageBase {
+
+	public static final int NULL = -1;
+
+	protected ValueDictionary dictionary = new ValueDictionary();
+	public ValueDictionary getDictionary() {
+		return this.dictionary;
+	}
+
+	@Override
+	protected Object newChunk() {
+		int[] chunk = new int[CHUNK_SIZE];
+		Arrays.fill(chunk, NULL);
+		return chunk;
+	}
+	@Override
+	protected void clearChunk(Object chunk) {
+		Arrays.fill((int[])chunk, NULL);
+	}
+	@Override
+	protected Object copyChunk(Object chunk) {
+		return ((int[])chunk).clone();
+	}
+
+	public int getCode(long id) {
+		return ((int[])this.chunk(id))[index(id)];
+	}
+	public void setCode(long id, int code) {
+		((int[])this.writableChunk(id))[index(id)] = code;
+	}
+
+	@Override
+	public Object getValue(long id) {
+		int code = this.getCode(id);
+		if(code == NULL) return null;
+		return this.dictionary.decode(code);
+	}
+	@Override
+	public void setValue(long id, Object value) {
+		this.setCode(id, value == null ? NULL : this.dictionary.encode(value));
+	}
+
+	@Override
+	public double getDouble(long id) {
+		Object value = this.getValue(id);
+		if(value instanceof Number) return ((Number)value).doubleValue();
+		return Double.NaN;
+	}
+	@Override
+	public void setDouble(long id, double value) {
+		this.setValue(id, value);
+	}
+
+	public ColumnStorageString(long start) {
+		super(start);
+	}
+}
+
+/**
+ * Distinct values with their codes. Codes are assigned consecutively starting from 0.
+ * Values are only added so a reader (snapshot) can decode all codes which existed when it was created while new values are being added.
+ * Values can be added by many threads (e.g., concurrent evaluation of partitions) and each distinct value gets exactly one code.
+ */
+class ValueDictionary {
+
+	private volatile Object[] values = new Object[16];
+	private volatile int size;
+	private final Map<Object, Integer> codes = new ConcurrentHashMap<Object, Integer>();
+
+	public int size() {
+		return this.size;
+	}
+
+	public Object decode(int code) {
+		return this.values[code];
+	}
+
+	// Code of the value or NULL if the value is not in the dictionary
+	public int find(Object value) {
+		if(value == null) return ColumnStorageString.NULL;
+		Integer code = this.codes.get(value);
+		return code == null ? ColumnStorageString.NULL : code;
+	}
+
+	// Code of the value which is added to the dictionary if necessary
+	public int encode(Object value) {
+		Integer code = this.codes.get(value);
+		if(code != null) return code;
+		return this.add(value);
+	}
+	private synchronized int add(Object value) {
+		Integer code = this.codes.get(value);
+		if(code != null) return code; // Added by another thread
+
+		int size = this.size;
+		Object[] values = this.values;
+		if(size == values.length) {
+			values = Arrays.copyOf(values, size * 2);
+		}
+		values[size] = value;
+		this.values = values; // Publish the value before its code
+		this.size = size + 1;
+		this.codes.put(value, size);
+		return size;
+	}
+}
+
+/**
+ * Persistent storage where values are stored in a file which is mapped into memory. Each value has a fixed width of 8 bytes and its position in the file is determined by its id.
+ *
+ * The file is mapped in segments consisting of many chunks. Released chunks are not removed from the file so it stores the whole history.
+ *
+ * Snapshots share the mapped chunks with the storage. Since mapped values are changed in place, a shared chunk is copied into memory before it is changed for the first time
+ * and the copy is given to the snapshots (not to the storage). Thus only chunks changed after the snapshot are stored in memory.
+ */
+abstract class ColumnStorageMapped extends ColumnStorageBase {
+
+	public static final int WIDTH = 8; // Bytes per value
+	public static final int SEGMENT_CHUNKS = 64; // Chunks mapped at once
+
+	protected final File file;
+	public File getFile() {
+		return this.file;
+	}
+
+	protected final FileChannel channel;
+
+	protected long initializedEnd; // Values with lower ids have been written to the file (higher ids have to be initialized as null)
+
+	protected List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>(); // Mapped segments with allocated chunks
+	protected long segmentStart; // Number of the first chunk of the first segment
+
+	protected abstract long nullBits(); // Bits stored for null values
+
+	@Override
+	protected Object newChunk() {
+		throw new UnsupportedOperationException("Chunks of mapped storage depend on their position.");
+	}
+	@Override
+	protected Object newChunk(long number) {
+		long segment = number / SEGMENT_CHUNKS;
+		if(this.segments.isEmpty()) this.segmentStart = segment * SEGMENT_CHUNKS;
+		int index = (int)(segment - this.segmentStart / SEGMENT_CHUNKS);
+		while(this.segments.size() <= index) {
+			long position = (this.segmentStart + (long)this.segments.size() * SEGMENT_CHUNKS) * CHUNK_SIZE * WIDTH;
+			try {
+				this.segments.add(this.channel.map(FileChannel.MapMode.READ_WRITE, position, (long)SEGMENT_CHUNKS * CHUNK_SIZE * WIDTH));
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		ByteBuffer buffer = this.segments.get(index).duplicate();
+		int offset = (int)(number % SEGMENT_CHUNKS) * CHUNK_SIZE * WIDTH;
+		buffer.position(offset);
+		buffer.limit(offset + CHUNK_SIZE * WIDTH);
+		ByteBuffer chunk = buffer.slice();
+
+		// Values which have never been written are null
+		long first = number * CHUNK_SIZE;
+		long end = first + CHUNK_SIZE;
+		for(long id = Long.max(first, this.initializedEnd); id < end; id++) {
+			chunk.putLong((int)(id - first) * WIDTH, this.nullBits());
+		}
+		this.initializedEnd = Long.max(this.initializedEnd, end);
+
+		return new MappedChunk(chunk);
+	}
+	@Override
+	protected void clearChunk(Object chunk) {
+		for(int i = 0; i < CHUNK_SIZE; i++) {
+			((MappedChunk)chunk).buffer.putLong(i * WIDTH, this.nullBits());
+		}
+	}
+	// The snapshots get a copy of the old values in memory and the storage continues to use the mapped buffer
+	@Override
+	protected Object copyChunk(Object chunk) {
+		MappedChunk shared = (MappedChunk)chunk;
+		ByteBuffer mapped = shared.buffer;
+		ByteBuffer copy = ByteBuffer.allocate(CHUNK_SIZE * WIDTH);
+		copy.put(mapped.duplicate()).clear();
+		shared.buffer = copy.asReadOnlyBuffer();
+		return new MappedChunk(mapped);
+	}
+
+	@Override
+	public void release(long start) {
+		super.release(start);
+
+		// Segments without allocated chunks are unmapped when they are garbage collected
+		while(!this.segments.isEmpty() && this.segmentStart + SEGMENT_CHUNKS <= this.startChunk) {
+			this.segments.remove(0);
+			this.segmentStart += SEGMENT_CHUNKS;
+		}
+	}
+
+	@Override
+	public void setRetention(long maxLength) {
+		// Released chunks are not reused because the file stores all values
+	}
+
+	// Write all changes to the file
+	public void force() {
+		for(MappedByteBuffer segment : this.segments) {
+			segment.force();
+		}
+	}
+
+	public void close() {
+		this.force();
+		this.segments.clear();
+		Arrays.fill(this.chunks, null);
+		try {
+			this.channel.close();
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	protected final long getBits(long id) {
+		return ((MappedChunk)this.chunk(id)).buffer.getLong(index(id) * WIDTH);
+	}
+	protected final void setBits(long id, long bits) {
+		((MappedChunk)this.writableChunk(id)).buffer.putLong(index(id) * WIDTH, bits);
+	}
+
+	@Override
+	public ColumnStorage snapshot() {
+		ColumnStorageMapped copy = (ColumnStorageMapped)super.snapshot();
+		copy.segments = new ArrayList<MappedByteBuffer>(this.segments); // Not changed by the snapshot
+		return copy;
+	}
+
+	// Buffer with the values of one chunk. It is replaced by a copy in memory (for snapshots) when the mapped values are changed.
+	static class MappedChunk {
+		volatile ByteBuffer buffer;
+		MappedChunk(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+	}
+
+	// The file is opened (or created) and existing values with ids before the end are used
+	public ColumnStorageMapped(File file, long start, long end) {
+		super(start);
+		this.file = file;
+		this.initializedEnd = end;
+		try {
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
+
+/**
+ * Persistent numeric storage. Null values are stored as a special NaN which is never produced by arithmetic operations.
+ */
+class ColumnStorageMappedDouble extends ColumnStorageMapped {
+
+	public static final long NULL_BITS = 0x7FF4_0000_0000_0001L;
+
+	@Override
+	protected long nullBits() {
+		return NULL_BITS;
+	}
+
+	@Override
+	public Object getValue(long id) {
+		long bits = this.getBits(id);
+		if(bits == NULL_BITS) return null;
+		return Double.longBitsToDouble(bits);
+	}
+	@Override
+	public void setValue(long id, Object value) {
+		if(value == null) {
+			this.setBits(id, NULL_BITS);
+		}
+		else if(value instanceof Number) {
+			this.setDouble(id, ((Number)value).doubleValue());
+		}
+		else { // Non-numeric values cannot be represented
+			this.setDouble(id, Double.NaN);
+		}
+	}
+
+	@Override
+	public double getDouble(long id) {
+		return Double.longBitsToDouble(this.getBits(id)); // Null values are NaN
+	}
+	@Override
+	public void setDouble(long id, double value) {
+		this.setBits(id, Double.isNaN(value) ? Double.doubleToLongBits(Double.NaN) : Double.doubleToRawLongBits(value)); // Only canonical NaN
+	}
+
+	public ColumnStorageMappedDouble(File file, long start, long end) {
+		super(file, start, end);
+	}
+}
+
+/**
+ * Persistent storage of non-negative longs, for example, ids. Null values are stored as -1.
+ */
+class ColumnStorageMappedLong extends ColumnStorageMapped {
+
+	@Override
+	protected long nullBits() {
+		return ColumnStorageLong.NULL;
+	}
+
+	public long getLong(long id) {
+		return this.getBits(id);
+	}
+	public void setLong(long id, long value) {
+		this.setBits(id, value);
+	}
+
+	@Override
+	public Object getValue(long id) {
+		long value = this.getBits(id);
+		if(value == ColumnStorageLong.NULL) return null;
+		return value;
+	}
+	@Override
+	public void setValue(long id, Object value) {
+		this.setBits(id, value instanceof Number ? ((Number)value).longValue() : ColumnStorageLong.NULL);
+	}
+
+	@Override
+	public double getDouble(long id) {
+		long value = this.getBits(id);
+		if(value == ColumnStorageLong.NULL) return Double.NaN;
+		return value;
+	}
+	@Override
+	public void setDouble(long id, double value) {
+		this.setBits(id, Double.isNaN(value) ? ColumnStorageLong.NULL : (long)value);
+	}
+
+	public ColumnStorageMappedLong(File file, long start, long end) {
+		super(file, start, end);
+	}
+}
+
+/**
+ * Binary dump of the values of a storage. It is used for checkpoints.
+ *
+ * The header stores the kind of storage and the range of ids. Numeric values are stored as 8-byte bits (nulls as special values) and are read in blocks.
+ * Objects are stored with a tag of their type (only strings, numbers and booleans are supported and other objects are stored as strings).
+ */
+class ColumnStorageDump {
+
+	public static final int MAGIC = 0x53434431;
+	public static final int BLOCK = 8192; // Values read or written at once
+
+	private static final byte DOUBLE = 0;
+	private static final byte LONG = 1;
+	private static final byte OBJECT = 2;
+	private static final byte CODES = 3;
+
+	private static final byte NULL = 0;
+	private static final byte STRING = 1;
+	private static final byte DOUBLE_VALUE = 2;
+	private static final byte LONG_VALUE = 3;
+	private static final byte INTEGER_VALUE = 4;
+	private static final byte BOOLEAN_VALUE = 5;
+
+	public static void write(ColumnStorage storage, long start, long end, File file) throws IOException {
+		FileOutputStream stream = new FileOutputStream(file);
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16))) {
+			boolean isDouble = storage instanceof ColumnStorageDouble || storage instanceof ColumnStorageMappedDouble;
+			boolean isLong = storage instanceof ColumnStorageLong || storage instanceof ColumnStorageMappedLong;
+			boolean isCodes = storage instanceof ColumnStorageString;
+
+			out.writeInt(MAGIC);
+			out.writeByte(isDouble ? DOUBLE : isLong ? LONG : isCodes ? CODES : OBJECT);
+			out.writeLong(start);
+			out.writeLong(end);
+
+			if(isDouble) {
+				double[] values = new double[BLOCK];
+				for(long id = start; id < end; id += BLOCK) {
+					int length = (int)Long.min(BLOCK, end - id);
+					storage.getDoubles(id, values, 0, length);
+					for(int i = 0; i < length; i++) {
+						if(Double.isNaN(values[i]) && storage.getValue(id + i) == null) out.writeLong(ColumnStorageMappedDouble.NULL_BITS);
+						else out.writeLong(Double.doubleToLongBits(values[i]));
+					}
+				}
+			}
+			else if(isLong) {
+				for(long id = start; id < end; id++) {
+					Object value = storage.getValue(id);
+					out.writeLong(value == null ? ColumnStorageLong.NULL : (Long)value);
+				}
+			}
+			else if(isCodes) { // Dictionary followed by codes
+				ColumnStorageString codes = (ColumnStorageString)storage;
+				ValueDictionary dictionary = codes.getDictionary();
+				int size = dictionary.size();
+				out.writeInt(size);
+				for(int code = 0; code < size; code++) {
+					ColumnStorageDump.writeObject(out, dictionary.decode(code));
+				}
+				for(long id = start; id < end; id++) {
+					out.writeInt(codes.getCode(id));
+				}
+			}
+			else {
+				for(long id = start; id < end; id++) {
+					ColumnStorageDump.writeObject(out, storage.getValue(id));
+				}
+			}
+
+			out.flush();
+			stream.getFD().sync(); // Durable before it is referenced by a manifest
+		}
+	}
+
+	public static ColumnStorage read(File file) throws IOException {
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			if(in.readInt() != MAGIC) {
+				throw new IOException("Not a column dump: " + file);
+			}
+			byte kind = in.readByte();
+			long start = in.readLong();
+			long end = in.readLong();
+
+			ColumnStorage storage;
+			if(kind == DOUBLE) {
+				storage = new ColumnStorageDouble(start);
+				storage.allocate(end);
+				long[] bits = new long[BLOCK];
+				double[] values = new double[BLOCK];
+				for(long id = start; id < end; id += BLOCK) {
+					int length = (int)Long.min(BLOCK, end - id);
+					boolean hasNulls = false;
+					for(int i = 0; i < length; i++) {
+						bits[i] = in.readLong();
+						values[i] = Double.longBitsToDouble(bits[i]);
+						hasNulls |= bits[i] == ColumnStorageMappedDouble.NULL_BITS;
+					}
+					storage.setDoubles(id, values, 0, length);
+					for(int i = 0; hasNulls && i < length; i++) {
+						if(bits[i] == ColumnStorageMappedDouble.NULL_BITS) storage.setValue(id + i, null);
+					}
+				}
+			}
+			else if(kind == LONG) {
+				ColumnStorageLong longs = new ColumnStorageLong(start);
+				longs.allocate(end);
+				for(long id = start; id < end; id++) {
+					longs.setLong(id, in.readLong());
+				}
+				storage = longs;
+			}
+			else if(kind == CODES) {
+				ColumnStorageString codes = new ColumnStorageString(start);
+				codes.allocate(end);
+				for(int i = in.readInt(); i > 0; i--) {
+					codes.getDictionary().encode(ColumnStorageDump.readObject(in));
+				}
+				for(long id = start; id < end; id++) {
+					codes.setCode(id, in.readInt());
+				}
+				storage = codes;
+			}
+			else {
+				storage = new ColumnStorageObject(start);
+				storage.allocate(end);
+				for(long id = start; id < end; id++) {
+					storage.setValue(id, ColumnStorageDump.readObject(in));
+				}
+			}
+			return storage;
+		}
+	}
+
+	static void writeObject(DataOutputStream out, Object value) throws IOException {
+		if(value == null) {
+			out.writeByte(NULL);
+		}
+		else if(value instanceof Double) {
+			out.writeByte(DOUBLE_VALUE);
+			out.writeDouble((Double)value);
+		}
+		else if(value instanceof Long) {
+			out.writeByte(LONG_VALUE);
+			out.writeLong((Long)value);
+		}
+		else if(value instanceof Integer) {
+			out.writeByte(INTEGER_VALUE);
+			out.writeInt((Integer)value);
+		}
+		else if(value instanceof Boolean) {
+			out.writeByte(BOOLEAN_VALUE);
+			out.writeBoolean((Boolean)value);
+		}
+		else {
+			byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+			out.writeByte(STRING);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	static Object readObject(DataInputStream in) throws IOException {
+		byte tag = in.readByte();
+		switch(tag) {
+		case NULL: return null;
+		case DOUBLE_VALUE: return in.readDouble();
+		case LONG_VALUE: return in.readLong();
+		case INTEGER_VALUE: return in.readInt();
+		case BOOLEAN_VALUE: return in.readBoolean();
+		case STRING:
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		default: throw new IOException("Unknown value type in column dump.");
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package org.conceptoriented.sc.core;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+import com.google.common.io.Files;
+
+/**
+ * It loads CSV data into a table by streaming it in batches so that memory does not depend on the size of the data.
+ *
+ * Column types are recommended from a sample of first records (only for columns which do not exist yet).
+ * Then the records are parsed and appended directly to the columns by means of a column batch.
+ * After each batch the progress listener (if any) gets the number of records loaded so far.
+ */
+public class CsvLoader {
+
+	private final Schema schema;
+	public Schema getSchema() {
+		return this.schema;
+	}
+
+	protected CSVFormat format = CSVFormat.EXCEL;
+	public CSVFormat getFormat() {
+		return this.format;
+	}
+	public void setFormat(CSVFormat format) {
+		this.format = format;
+	}
+
+	// Number of records appended at once
+	protected int batchSize = 10_000;
+	public int getBatchSize() {
+		return this.batchSize;
+	}
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	// Number of first records used to recommend column types
+	protected int sampleSize = 1_000;
+	public int getSampleSize() {
+		return this.sampleSize;
+	}
+	public void setSampleSize(int sampleSize) {
+		this.sampleSize = sampleSize;
+	}
+
+	// Format of numbers in the file
+	protected NumberParser numberParser = NumberParser.US;
+	public NumberParser getNumberParser() {
+		return this.numberParser;
+	}
+	public void setNumberParser(NumberParser numberParser) {
+		this.numberParser = numberParser;
+	}
+
+	protected LongConsumer progress;
+	public void setProgress(LongConsumer progress) {
+		this.progress = progress;
+	}
+
+	//
+	// Load
+	//
+
+	// Table name is the file name without extension
+	public Table load(String fileName, boolean hasHeaderRecord) throws IOException {
+		String tableName = Files.getNameWithoutExtension(new File(fileName).getName());
+		try(Reader in = new FileReader(fileName)) {
+			return this.load(tableName, in, hasHeaderRecord);
+		}
+	}
+
+	public Table load(String tableName, Reader in, boolean hasHeaderRecord) throws IOException {
+		CSVParser parser = this.format.parse(in);
+		Iterator<CSVRecord> it = parser.iterator();
+
+		// Column names
+		List<String> colNames = new ArrayList<String>();
+		List<CSVRecord> sample = new ArrayList<CSVRecord>();
+		if(hasHeaderRecord) {
+			if(!it.hasNext()) return this.schema.getTable(tableName);
+			it.next().forEach(x -> colNames.add(x));
+		}
+
+		// Sample of first records
+		while(sample.size() < this.sampleSize && it.hasNext()) {
+			sample.add(it.next());
+		}
+		if(!hasHeaderRecord) {
+			int count = sample.isEmpty() ? 0 : sample.get(0).size();
+			for(int i=0; i<count; i++) colNames.add("Column " + i);
+		}
+
+		// Table and columns
+		Table tab = this.schema.getTable(tableName);
+		if(tab == null) {
+			tab = this.schema.createTable(tableName);
+		}
+		Column[] columns = new Column[colNames.size()];
+		boolean[] numeric = new boolean[colNames.size()];
+		for(int j=0; j<colNames.size(); j++) {
+			Column column = this.schema.getColumn(tab.getName(), colNames.get(j));
+			if(column == null) {
+				String[] values = new String[sample.size()];
+				for(int i=0; i<sample.size(); i++) {
+					String value = j < sample.get(i).size() ? sample.get(i).get(j) : null;
+					values[i] = value == null || value.trim().isEmpty() ? null : value; // Empty values are not used for recommendation
+				}
+				column = this.schema.createColumn(tab.getName(), colNames.get(j), Utils.recommendType(values));
+			}
+			columns[j] = column;
+			numeric[j] = ColumnData.isNumeric(column.getOutput());
+		}
+
+		// Records
+		ColumnBatch batch = new ColumnBatch(tab, this.batchSize);
+		this.loaded = 0;
+		for(CSVRecord rec : sample) {
+			this.add(batch, columns, numeric, rec);
+		}
+		sample.clear();
+		while(it.hasNext()) {
+			this.add(batch, columns, numeric, it.next());
+		}
+		this.flush(batch);
+
+		return tab;
+	}
+
+	protected long loaded; // Records loaded by the current load operation
+
+	// Add one record to the batch and append the batch if it is full
+	protected void add(ColumnBatch batch, Column[] columns, boolean[] numeric, CSVRecord rec) {
+		int row = batch.getLength();
+		for(int j=0; j<columns.length; j++) {
+			String value = j < rec.size() ? rec.get(j) : null; // Missing values
+			if(numeric[j]) {
+				batch.doubles(columns[j])[row] = this.numberParser.parse(value);
+			}
+			else {
+				batch.strings(columns[j])[row] = value;
+			}
+		}
+		batch.setLength(row + 1);
+
+		if(batch.getLength() == batch.getCapacity()) {
+			this.flush(batch);
+		}
+	}
+
+	protected void flush(ColumnBatch batch) {
+		if(batch.getLength() == 0) return;
+
+		batch.getTable().append(batch);
+		this.loaded += batch.getLength();
+		batch.clear();
+
+		if(this.progress != null) this.progress.accept(this.loaded);
+	}
+
+	public CsvLoader(Schema schema) {
+		this.schema = schema;
+	}
+}
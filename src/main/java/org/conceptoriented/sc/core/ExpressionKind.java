@@ -6,6 +6,7 @@ public enum ExpressionKind {
 	AUTO(10), // Auto. Formula kind has to be determined automatically using other parameters. 
 
 	EXP4J(20), // Like "[Column 1] + [Column 2] / 2.0"
+	COMPILED(25), // Same syntax as EXP4J but the formula is compiled into Java byte code
 	EVALEX(30),
 
 	JAVASCRIPT(40), 
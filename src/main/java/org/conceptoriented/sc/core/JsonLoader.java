@@ -0,0 +1,461 @@
+package org.conceptoriented.sc.core;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+import org.json.JSONException;
+
+/**
+ * It loads JSON records into a table by streaming them in batches without building a tree of JSON objects.
+ *
+ * The same forms as in Record.fromJsonList are accepted: an array of records, a record, or an object with the "data" field storing an array of records or a record.
+ * Fields are matched with the table columns (case insensitive) and their values are stored in a column batch. Unknown fields and nested objects or arrays are ignored.
+ * After each batch the progress listener (if any) gets the number of records loaded so far.
+ */
+public class JsonLoader {
+
+	private final Schema schema;
+	public Schema getSchema() {
+		return this.schema;
+	}
+
+	// Number of records appended at once
+	protected int batchSize = 10_000;
+	public int getBatchSize() {
+		return this.batchSize;
+	}
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	protected LongConsumer progress;
+	public void setProgress(LongConsumer progress) {
+		this.progress = progress;
+	}
+
+	//
+	// Load
+	//
+
+	public Table load(String tableName, String json) {
+		try {
+			return this.load(tableName, new StringReader(json));
+		}
+		catch (IOException e) {
+			throw new JSONException(e);
+		}
+	}
+
+	public Table load(String tableName, Reader in) throws IOException {
+		Table tab = this.schema.getTable(tableName);
+		if(tab == null) {
+			throw new IllegalArgumentException("Table not found: " + tableName);
+		}
+		this.prepare(tab);
+		this.loaded = 0;
+
+		JsonPullReader reader = new JsonPullReader(in);
+		int c = reader.peek();
+		if(c == '[') {
+			this.readRecords(reader);
+		}
+		else if(c == '{') {
+			this.readEnvelope(reader);
+		}
+		else {
+			throw reader.error("Array or object expected");
+		}
+
+		this.flush();
+
+		return tab;
+	}
+
+	//
+	// Columns and batch
+	//
+
+	private static final int NUMERIC = 0; // Stored as doubles
+	private static final int STRING = 1; // Stored as strings
+	private static final int OTHER = 2; // Stored as longs (e.g., ids)
+
+	protected ColumnBatch batch;
+	protected long loaded; // Records loaded by the current load operation
+
+	private Column[] columns;
+	private String[] names;
+	private int[] kinds;
+	private double[][] doubles;
+	private String[][] strings;
+	private long[][] longs;
+	private boolean[][] nulls;
+	private int lastColumn = -1; // Fields of records are normally in the same order
+
+	protected void prepare(Table table) {
+		List<Column> cols = this.schema.getColumns(table.getName());
+		int count = cols.size();
+
+		this.batch = new ColumnBatch(table, this.batchSize);
+		this.columns = cols.toArray(new Column[count]);
+		this.names = new String[count];
+		this.kinds = new int[count];
+		this.doubles = new double[count][];
+		this.strings = new String[count][];
+		this.longs = new long[count][];
+		this.nulls = new boolean[count][];
+
+		for(int j=0; j<count; j++) {
+			Column column = this.columns[j];
+			Table output = column.getOutput();
+			this.names[j] = column.getName();
+			if(ColumnData.isNumeric(output)) {
+				this.kinds[j] = NUMERIC;
+				this.doubles[j] = this.batch.doubles(column);
+			}
+			else if(output != null && output.getName().equalsIgnoreCase("String")) {
+				this.kinds[j] = STRING;
+				this.strings[j] = this.batch.strings(column);
+			}
+			else {
+				this.kinds[j] = OTHER;
+				this.longs[j] = this.batch.longs(column);
+			}
+			this.nulls[j] = this.batch.nulls(column);
+		}
+	}
+
+	// Column with the name stored in the token (case insensitive) or -1
+	protected int findColumn(char[] chars, int length) {
+		for(int k=0; k<this.names.length; k++) {
+			int j = (this.lastColumn + 1 + k) % this.names.length; // Start from the next column
+			if(JsonLoader.equalsIgnoreCase(this.names[j], chars, length)) {
+				this.lastColumn = j;
+				return j;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean equalsIgnoreCase(String name, char[] chars, int length) {
+		if(name.length() != length) return false;
+		for(int i=0; i<length; i++) {
+			char a = name.charAt(i);
+			char b = chars[i];
+			if(a == b) continue;
+			if(Character.toUpperCase(a) == Character.toUpperCase(b)) continue;
+			if(Character.toLowerCase(a) == Character.toLowerCase(b)) continue;
+			return false;
+		}
+		return true;
+	}
+
+	// All values of the next row are null until they are set
+	protected void beginRow() {
+		int row = this.batch.getLength();
+		for(int j=0; j<this.columns.length; j++) {
+			this.nulls[j][row] = true;
+		}
+		this.lastColumn = -1;
+	}
+
+	protected void endRow() {
+		this.batch.setLength(this.batch.getLength() + 1);
+		if(this.batch.getLength() == this.batch.getCapacity()) {
+			this.flush();
+		}
+	}
+
+	protected void flush() {
+		if(this.batch.getLength() == 0) return;
+
+		this.batch.getTable().append(this.batch);
+		this.loaded += this.batch.getLength();
+		this.batch.clear();
+
+		if(this.progress != null) this.progress.accept(this.loaded);
+	}
+
+	//
+	// Parse
+	//
+
+	protected void readRecords(JsonPullReader reader) throws IOException {
+		reader.expect('[');
+		if(reader.peek() == ']') {
+			reader.next();
+			return;
+		}
+		while(true) {
+			this.readRecord(reader);
+			int c = reader.next();
+			if(c == ']') break;
+			if(c != ',') throw reader.error("',' or ']' expected");
+		}
+	}
+
+	protected void readRecord(JsonPullReader reader) throws IOException {
+		reader.expect('{');
+		this.beginRow();
+		if(reader.peek() == '}') {
+			reader.next();
+			this.endRow();
+			return;
+		}
+		while(true) {
+			reader.readString();
+			int col = this.findColumn(reader.token, reader.tokenLength);
+			reader.expect(':');
+			this.readValue(reader, col);
+
+			int c = reader.next();
+			if(c == '}') break;
+			if(c != ',') throw reader.error("',' or '}' expected");
+		}
+		this.endRow();
+	}
+
+	// Either a record or an object with the data field
+	protected void readEnvelope(JsonPullReader reader) throws IOException {
+		reader.expect('{');
+		this.beginRow();
+		boolean hasData = false;
+		if(reader.peek() == '}') {
+			reader.next();
+			this.endRow();
+			return;
+		}
+		while(true) {
+			reader.readString();
+			boolean isData = reader.tokenLength == 4 && reader.token[0] == 'd' && reader.token[1] == 'a' && reader.token[2] == 't' && reader.token[3] == 'a';
+			int col = hasData ? -1 : this.findColumn(reader.token, reader.tokenLength);
+			reader.expect(':');
+
+			int c = reader.peek();
+			if(isData && !hasData && c == '[') {
+				hasData = true;
+				this.readRecords(reader);
+			}
+			else if(isData && !hasData && c == '{') {
+				hasData = true;
+				this.readRecord(reader);
+			}
+			else if(isData && !hasData) { // Neither records nor a record
+				hasData = true;
+				reader.skipValue();
+			}
+			else {
+				this.readValue(reader, col);
+			}
+
+			c = reader.next();
+			if(c == '}') break;
+			if(c != ',') throw reader.error("',' or '}' expected");
+		}
+		if(!hasData) this.endRow(); // The object itself is a record
+	}
+
+	protected void readValue(JsonPullReader reader, int col) throws IOException {
+		if(col < 0) {
+			reader.skipValue();
+			return;
+		}
+
+		int row = this.batch.getLength();
+		int c = reader.peek();
+		if(c == '"' || c == '-' || (c >= '0' && c <= '9')) {
+			if(c == '"') reader.readString();
+			else reader.readNumber();
+
+			if(this.kinds[col] == NUMERIC) {
+				this.doubles[col][row] = NumberParser.US.parse(reader.token, 0, reader.tokenLength);
+			}
+			else if(this.kinds[col] == STRING) {
+				this.strings[col][row] = new String(reader.token, 0, reader.tokenLength);
+			}
+			else {
+				double value = NumberParser.US.parse(reader.token, 0, reader.tokenLength);
+				if(Double.isNaN(value)) return; // Null
+				this.longs[col][row] = (long)value;
+			}
+			this.nulls[col][row] = false;
+		}
+		else if(c == 't' || c == 'f') {
+			boolean value = reader.readLiteral() == 't';
+			if(this.kinds[col] == NUMERIC) {
+				this.doubles[col][row] = Double.NaN;
+			}
+			else if(this.kinds[col] == STRING) {
+				this.strings[col][row] = value ? "true" : "false";
+			}
+			else {
+				return; // Null
+			}
+			this.nulls[col][row] = false;
+		}
+		else { // Null, nested objects and arrays
+			reader.skipValue();
+		}
+	}
+
+	public JsonLoader(Schema schema) {
+		this.schema = schema;
+	}
+}
+
+/**
+ * Pull parser of JSON text. Strings and numbers are read into a reusable buffer (token) without creating objects.
+ */
+class JsonPullReader {
+
+	private final Reader in;
+	private final char[] buffer = new char[8192];
+	private int position;
+	private int limit;
+	private long offset; // Number of characters before the buffer
+
+	char[] token = new char[256];
+	int tokenLength;
+
+	private int read() throws IOException {
+		if(this.position == this.limit) {
+			this.offset += this.limit;
+			this.limit = this.in.read(this.buffer, 0, this.buffer.length);
+			this.position = 0;
+			if(this.limit <= 0) {
+				this.limit = 0;
+				return -1;
+			}
+		}
+		return this.buffer[this.position++];
+	}
+
+	// Next character after white spaces (it is not consumed)
+	public int peek() throws IOException {
+		while(true) {
+			int c = this.read();
+			if(c < 0) return -1;
+			if(c == ' ' || c == '\t' || c == '\n' || c == '\r') continue;
+			this.position--;
+			return c;
+		}
+	}
+
+	// Consume next character after white spaces
+	public int next() throws IOException {
+		int c = this.peek();
+		if(c >= 0) this.position++;
+		return c;
+	}
+
+	public void expect(char expected) throws IOException {
+		if(this.next() != expected) throw this.error("'" + expected + "' expected");
+	}
+
+	private void append(char c) {
+		if(this.tokenLength == this.token.length) {
+			char[] newToken = new char[this.token.length * 2];
+			System.arraycopy(this.token, 0, newToken, 0, this.tokenLength);
+			this.token = newToken;
+		}
+		this.token[this.tokenLength++] = c;
+	}
+
+	public void readString() throws IOException {
+		this.expect('"');
+		this.tokenLength = 0;
+		while(true) {
+			int c = this.read();
+			if(c < 0) throw this.error("Unterminated string");
+			if(c == '"') return;
+			if(c == '\\') {
+				c = this.read();
+				switch(c) {
+				case 'b': this.append('\b'); break;
+				case 't': this.append('\t'); break;
+				case 'n': this.append('\n'); break;
+				case 'f': this.append('\f'); break;
+				case 'r': this.append('\r'); break;
+				case 'u':
+					int code = 0;
+					for(int i=0; i<4; i++) {
+						int digit = Character.digit(this.read(), 16);
+						if(digit < 0) throw this.error("Invalid escape sequence");
+						code = code * 16 + digit;
+					}
+					this.append((char)code);
+					break;
+				case '"': case '\\': case '/': this.append((char)c); break;
+				default: throw this.error("Invalid escape sequence");
+				}
+			}
+			else {
+				this.append((char)c);
+			}
+		}
+	}
+
+	public void readNumber() throws IOException {
+		this.peek();
+		this.tokenLength = 0;
+		while(true) {
+			int c = this.read();
+			if((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+				this.append((char)c);
+			}
+			else {
+				if(c >= 0) this.position--;
+				break;
+			}
+		}
+		if(this.tokenLength == 0) throw this.error("Number expected");
+	}
+
+	// Returns the first character of true, false or null
+	public int readLiteral() throws IOException {
+		int c = this.peek();
+		String word = c == 't' ? "true" : c == 'f' ? "false" : c == 'n' ? "null" : null;
+		if(word == null) throw this.error("Value expected");
+		for(int i=0; i<word.length(); i++) {
+			if(this.read() != word.charAt(i)) throw this.error("Value expected");
+		}
+		return c;
+	}
+
+	public void skipValue() throws IOException {
+		int c = this.peek();
+		if(c == '"') {
+			this.readString();
+		}
+		else if(c == '{' || c == '[') {
+			int depth = 0;
+			do {
+				c = this.peek();
+				if(c == '"') {
+					this.readString();
+					continue;
+				}
+				if(c < 0) throw this.error("Unexpected end");
+				this.position++;
+				if(c == '{' || c == '[') depth++;
+				else if(c == '}' || c == ']') depth--;
+			} while(depth > 0);
+		}
+		else if(c == '-' || (c >= '0' && c <= '9')) {
+			this.readNumber();
+		}
+		else {
+			this.readLiteral();
+		}
+	}
+
+	public JSONException error(String message) {
+		return new JSONException(message + " at character " + (this.offset + this.position));
+	}
+
+	public JsonPullReader(Reader in) {
+		this.in = in;
+	}
+}
@@ -0,0 +1,187 @@
+package org.conceptoriented.sc.core;
+
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Parser of decimal numbers from text without creating objects and throwing exceptions.
+ *
+ * It parses the (trimmed) leading part of the text which represents a number with optional sign, grouping separators in the integer part, fraction and exponent.
+ * The rest of the text is ignored (similar to NumberFormat). If there is no number in the text (or it is null) then NaN is returned.
+ * Numbers which cannot be computed exactly from their digits by the fast method are parsed by the standard parser.
+ */
+public final class NumberParser {
+
+	public static final NumberParser US = new NumberParser('.', ',');
+
+	private final char decimalSeparator;
+	public char getDecimalSeparator() {
+		return this.decimalSeparator;
+	}
+
+	private final char groupingSeparator;
+	public char getGroupingSeparator() {
+		return this.groupingSeparator;
+	}
+
+	// Powers of ten which are represented exactly
+	private static final double[] POWERS = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+	private static final long MAX_EXACT = 1L << 53; // Max mantissa which is represented exactly
+
+	//
+	// Parse
+	//
+
+	public double parse(CharSequence text) {
+		if(text == null) return Double.NaN;
+		return this.parse(null, text, 0, text.length());
+	}
+	public double parse(CharSequence text, int start, int end) {
+		if(text == null) return Double.NaN;
+		return this.parse(null, text, start, end);
+	}
+	public double parse(char[] chars, int start, int end) {
+		if(chars == null) return Double.NaN;
+		return this.parse(chars, null, start, end);
+	}
+
+	// Characters are taken either from the array or from the sequence
+	private double parse(char[] chars, CharSequence text, int start, int end) {
+		int i = start;
+
+		// Leading white spaces
+		while(i < end && charAt(chars, text, i) <= ' ') i++;
+		if(i == end) return Double.NaN;
+
+		// Sign
+		boolean negative = false;
+		char c = charAt(chars, text, i);
+		if(c == '-' || c == '+') {
+			negative = c == '-';
+			i++;
+		}
+
+		// Special values
+		if(matches(chars, text, i, end, "NaN")) return Double.NaN;
+		if(matches(chars, text, i, end, "Infinity") || (i < end && charAt(chars, text, i) == '\u221E')) return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+
+		long mantissa = 0;
+		int digits = 0; // Significant digits in the mantissa
+		int exponent = 0; // Decimal exponent of the mantissa
+		boolean truncated = false; // Some significant digits do not fit into the mantissa
+		boolean hasDigits = false;
+
+		// Integer part with grouping separators
+		for(; i < end; i++) {
+			c = charAt(chars, text, i);
+			if(c >= '0' && c <= '9') {
+				hasDigits = true;
+				if(digits < 18) {
+					mantissa = mantissa * 10 + (c - '0');
+					if(mantissa != 0) digits++;
+				}
+				else {
+					exponent++;
+					if(c != '0') truncated = true;
+				}
+			}
+			else if(c == this.groupingSeparator && hasDigits) {
+				continue;
+			}
+			else {
+				break;
+			}
+		}
+
+		// Fraction
+		if(i < end && charAt(chars, text, i) == this.decimalSeparator) {
+			for(i++; i < end; i++) {
+				c = charAt(chars, text, i);
+				if(c < '0' || c > '9') break;
+				hasDigits = true;
+				if(digits < 18) {
+					mantissa = mantissa * 10 + (c - '0');
+					if(mantissa != 0) digits++;
+					exponent--;
+				}
+				else if(c != '0') {
+					truncated = true;
+				}
+			}
+		}
+
+		if(!hasDigits) return Double.NaN;
+
+		// Exponent (ignored if it has no digits)
+		if(i < end && (charAt(chars, text, i) == 'E' || charAt(chars, text, i) == 'e')) {
+			int j = i + 1;
+			boolean negativeExp = false;
+			if(j < end && (charAt(chars, text, j) == '-' || charAt(chars, text, j) == '+')) {
+				negativeExp = charAt(chars, text, j) == '-';
+				j++;
+			}
+			int exp = 0;
+			boolean hasExp = false;
+			for(; j < end; j++) {
+				c = charAt(chars, text, j);
+				if(c < '0' || c > '9') break;
+				hasExp = true;
+				if(exp < 100_000) exp = exp * 10 + (c - '0');
+			}
+			if(hasExp) {
+				exponent += negativeExp ? -exp : exp;
+				i = j;
+			}
+		}
+
+		double value;
+		if(mantissa == 0) {
+			value = 0.0;
+		}
+		else if(!truncated && mantissa < MAX_EXACT && exponent >= -22 && exponent <= 22) { // Exact (correctly rounded) computation
+			value = exponent >= 0 ? mantissa * POWERS[exponent] : mantissa / POWERS[-exponent];
+		}
+		else { // Rare case
+			value = this.parseSlow(chars, text, start, i);
+		}
+
+		return negative ? -value : value;
+	}
+
+	// Standard parser for the number without sign and grouping separators
+	private double parseSlow(char[] chars, CharSequence text, int start, int end) {
+		StringBuilder sb = new StringBuilder(end - start);
+		for(int i = start; i < end; i++) {
+			char c = charAt(chars, text, i);
+			if(c >= '0' && c <= '9' || c == 'E' || c == 'e') sb.append(c);
+			else if(c == this.decimalSeparator) sb.append('.');
+			else if(c == '-' && sb.length() > 0) sb.append(c); // Sign of the exponent
+		}
+		return Double.parseDouble(sb.toString());
+	}
+
+	private static char charAt(char[] chars, CharSequence text, int i) {
+		return chars != null ? chars[i] : text.charAt(i);
+	}
+
+	private static boolean matches(char[] chars, CharSequence text, int i, int end, String word) {
+		if(end - i < word.length()) return false;
+		for(int j = 0; j < word.length(); j++) {
+			if(charAt(chars, text, i + j) != word.charAt(j)) return false;
+		}
+		return true;
+	}
+
+	public static NumberParser forLocale(Locale locale) {
+		DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(locale);
+		return new NumberParser(symbols.getDecimalSeparator(), symbols.getGroupingSeparator());
+	}
+
+	public NumberParser(char decimalSeparator, char groupingSeparator) {
+		this.decimalSeparator = decimalSeparator;
+		this.groupingSeparator = groupingSeparator;
+	}
+}
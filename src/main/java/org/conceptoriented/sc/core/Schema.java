@@ -4,20 +4,38 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVRecord;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
-import com.google.common.io.Files;
-
 /**
  * Stream schema stores the complete data state and is able to consistently update it. 
  */
@@ -66,9 +84,7 @@ public class Schema {
 		// Evaluate all
 		//
 
-		// Mark all columns dirty (non-evaluated) - otherwise evaluation will not do anything because it thinks that the functions are up-ot-date
-		this.getColumns().forEach(x -> x.getData().isChanged = true);
-
+		// Columns are not marked dirty because only new records have to be evaluated if nothing else has been changed
 		this.translate();
 		this.evaluate(); // Evaluate
 		
@@ -85,6 +101,12 @@ public class Schema {
 	// The system tries to do evaluations in the specified time after the last evaluation.
 	// It may happen that no evaluation is required because the status is clean
 	protected long minEvaluationFrequency = -1;  
+	public long getMinEvaluationFrequency() {
+		return this.minEvaluationFrequency;
+	}
+	public void setMinEvaluationFrequency(long minEvaluationFrequency) {
+		this.minEvaluationFrequency = minEvaluationFrequency;
+	}
 
 	//
 	// Environment
@@ -97,6 +119,15 @@ public class Schema {
 	public void setClassLoader(ClassLoader classLoader) {
 		this.classLoader = classLoader;
 	}
+
+	// Columns of one dependency layer are evaluated concurrently in this executor (e.g., ForkJoinPool). Null means sequential evaluation.
+	private ExecutorService executor;
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
 	
 	//
 	// Tables
@@ -107,12 +138,25 @@ public class Schema {
 		return this.tables;
 	}
 	public Table getTable(String table) {
-        Table ret = this.tables.stream().filter(x -> x.getName().equalsIgnoreCase(table)).findAny().orElse(null);
-        return ret;
+		if(table == null) return null;
+		return this.tableNames.get(table.toLowerCase(Locale.ROOT));
 	}
 	public Table getTableById(String id) {
-        Table ret = this.tables.stream().filter(x -> x.getId().toString().equals(id)).findAny().orElse(null);
-        return ret;
+		return this.tableIds.get(id);
+	}
+
+	// Lookup maps which are kept in sync with the list of tables. Names are case-insensitive (lower case keys).
+	private Map<String, Table> tableNames = new HashMap<String, Table>();
+	private Map<String, Table> tableIds = new HashMap<String, Table>();
+
+	// Table name has been changed
+	protected void tableRenamed(Table tab, String oldName) {
+		if(oldName != null && this.tableNames.get(oldName.toLowerCase(Locale.ROOT)) == tab) {
+			this.tableNames.remove(oldName.toLowerCase(Locale.ROOT));
+		}
+		if(tab.getName() != null) {
+			this.tableNames.putIfAbsent(tab.getName().toLowerCase(Locale.ROOT), tab);
+		}
 	}
 
 	public Table createTable(String name) {
@@ -121,6 +165,10 @@ public class Schema {
 
 		tab = new Table(this, name);
 		this.tables.add(tab);
+		this.tableNames.put(name.toLowerCase(Locale.ROOT), tab);
+		this.tableIds.put(tab.getId().toString(), tab);
+		this.tableColumns.put(tab, new ArrayList<Column>());
+		this.columnNames.put(tab, new HashMap<String, Column>());
 		return tab;
 	}
 	public Table createTableFromJson(String json) throws DcError {
@@ -152,28 +200,14 @@ public class Schema {
 		return tab;
 	}
     public Table createFromCsvFile(String fileName, boolean hasHeaderRecord) {
-        String tableName = null;
-        File file = new File(fileName);
-        tableName = file.getName();
-        tableName = Files.getNameWithoutExtension(tableName);
-
-        // Read column names from CSV
-        List<String> colNames = Schema.readColumnNamesFromCsvFile(fileName);
-        
-        // Read Records from CSV
-        List<Record> records = Record.fromCsvFile(fileName, colNames, true);
-        
-        // Get column types
-        List<String> colTypes = Utils.recommendTypes(colNames, records);
-
-        // Create/append table with file name
-		Table tab = this.createTable(tableName);
-        
-        // Append columns
-		this.createColumns(tab.getName(), colNames, colTypes);
-        
-        // Append records to this table
-        tab.append(records, null);
+        // Stream records from the file in batches (types are recommended from a sample)
+        Table tab;
+        try {
+            tab = new CsvLoader(this).load(fileName, hasHeaderRecord);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
         
         // Auto-evaluation if needed
         this.autoEvaluate();
@@ -252,14 +286,18 @@ public class Schema {
 
 		// Remove input columns
 		List<Column> inColumns = this.columns.stream().filter(x -> x.getInput().equals(tab)).collect(Collectors.<Column>toList());
-		this.columns.removeAll(inColumns);
+		inColumns.forEach(x -> this.removeColumn(x));
 		
 		// Remove output columns
 		List<Column> outColumns = this.columns.stream().filter(x -> x.getOutput().equals(tab)).collect(Collectors.<Column>toList());
-		this.columns.removeAll(outColumns);
+		outColumns.forEach(x -> this.removeColumn(x));
 		
 		// Remove table itself
 		this.tables.remove(tab);
+		if(this.tableNames.get(tab.getName().toLowerCase(Locale.ROOT)) == tab) this.tableNames.remove(tab.getName().toLowerCase(Locale.ROOT));
+		this.tableIds.remove(tab.getId().toString());
+		this.tableColumns.remove(tab);
+		this.columnNames.remove(tab);
 	}
 
 	//
@@ -270,22 +308,75 @@ public class Schema {
 	public List<Column> getColumns() {
 		return this.columns;
 	}
-	public List<Column> getColumns(String table) {
-		List<Column> res = this.columns.stream().filter(x -> x.getInput().getName().equalsIgnoreCase(table)).collect(Collectors.<Column>toList());
-		return res;
+	public List<Column> getColumns(String table) { // The list is maintained by the schema and must not be changed
+		List<Column> res = this.tableColumns.get(this.getTable(table));
+		return res != null ? res : new ArrayList<Column>();
 	}
 	public Column getColumn(String table, String column) {
-        Column ret = this.columns.stream().filter(x -> x.getInput().getName().equalsIgnoreCase(table) && x.getName().equalsIgnoreCase(column)).findAny().orElse(null);
-        return ret;
+		Map<String, Column> names = this.columnNames.get(this.getTable(table));
+		if(names == null || column == null) return null;
+		return names.get(column.toLowerCase(Locale.ROOT));
 	}
 	public Column getColumnById(String id) {
-        Column ret = this.columns.stream().filter(x -> x.getId().toString().equals(id)).findAny().orElse(null);
-        return ret;
+		return this.columnIds.get(id);
+	}
+
+	// Lookup maps which are kept in sync with the list of columns. Names are case-insensitive (lower case keys).
+	private Map<Table, List<Column>> tableColumns = new HashMap<Table, List<Column>>(); // Input table -> its columns
+	private Map<Table, Map<String, Column>> columnNames = new HashMap<Table, Map<String, Column>>(); // Input table -> column name -> column
+	private Map<String, Column> columnIds = new HashMap<String, Column>();
+
+	private void addColumnName(Column col) {
+		Map<String, Column> names = this.columnNames.get(col.getInput());
+		if(names != null && col.getName() != null) names.putIfAbsent(col.getName().toLowerCase(Locale.ROOT), col);
+	}
+	private void removeColumnName(Column col, Table input, String name) {
+		Map<String, Column> names = this.columnNames.get(input);
+		if(names == null || name == null || names.get(name.toLowerCase(Locale.ROOT)) != col) return;
+		names.remove(name.toLowerCase(Locale.ROOT));
+
+		// Another column with the same name might exist
+		Column other = this.tableColumns.get(input).stream().filter(x -> x != col && name.equalsIgnoreCase(x.getName())).findFirst().orElse(null);
+		if(other != null) names.put(name.toLowerCase(Locale.ROOT), other);
+	}
+
+	// Column name has been changed
+	protected void columnRenamed(Column col, String oldName) {
+		if(!this.columnIds.containsKey(col.getId().toString())) return; // Not added yet
+		this.removeColumnName(col, col.getInput(), oldName);
+		this.addColumnName(col);
+	}
+	// Column input table has been changed
+	protected void columnMoved(Column col, Table oldInput) {
+		if(!this.columnIds.containsKey(col.getId().toString())) return; // Not added yet
+		List<Column> oldList = this.tableColumns.get(oldInput);
+		if(oldList != null) oldList.remove(col);
+		this.removeColumnName(col, oldInput, col.getName());
+
+		List<Column> newList = this.tableColumns.get(col.getInput());
+		if(newList != null) newList.add(col);
+		this.addColumnName(col);
+	}
+
+	private void removeColumn(Column col) {
+		File file = col.getData().close();
+		if(file != null) this.fileRemoved(file);
+		this.dependenciesChanged();
+		this.columns.remove(col);
+		this.columnIds.remove(col.getId().toString());
+		List<Column> list = this.tableColumns.get(col.getInput());
+		if(list != null) list.remove(col);
+		this.removeColumnName(col, col.getInput(), col.getName());
 	}
 
 	public Column createColumn(String input, String name, String output) {
 		Column col = new Column(this, name, input, output);
+		this.dependenciesChanged();
 		this.columns.add(col);
+		this.columnIds.put(col.getId().toString(), col);
+		List<Column> list = this.tableColumns.get(col.getInput());
+		if(list != null) list.add(col);
+		this.addColumnName(col);
 		return col;
 	}
 	public List<Column> createColumns(String input, List<String> names, List<String> outputs) {
@@ -338,6 +429,7 @@ public class Schema {
 		String accuFormula = obj.has("accuFormula") && !obj.isNull("accuFormula") ? obj.getString("accuFormula") : "";
 		String accuTable = obj.has("accuTable") && !obj.isNull("accuTable") ? obj.getString("accuTable") : "";
 		String accuPath = obj.has("accuPath") && !obj.isNull("accuPath") ? obj.getString("accuPath") : "";
+		String retractFormula = obj.has("retractFormula") && !obj.isNull("retractFormula") ? obj.getString("retractFormula") : "";
 
 		//
 		// Check validity
@@ -358,7 +450,7 @@ public class Schema {
 			// Always create a new definition object
 			col.setDefinitionCalc(new ColumnDefinitionCalc(calcFormula, col.expressionKind));
 			col.setDefinitionLink(new ColumnDefinitionLink(linkFormula, col.expressionKind));
-			col.setDefinitionAccu(new ColumnDefinitionAccu(initFormula, accuFormula, null, accuTable, accuPath, col.expressionKind));
+			col.setDefinitionAccu(new ColumnDefinitionAccu(initFormula, accuFormula, null, retractFormula, accuTable, accuPath, col.expressionKind));
 
 			if(!col.isDerived()) { // Columns without formula (non-evalatable) are clean
 				col.setFormulaChange(false);
@@ -411,6 +503,7 @@ public class Schema {
 		String accuFormula = obj.has("accuFormula") && !obj.isNull("accuFormula") ? obj.getString("accuFormula") : "";
 		String accuTable = obj.has("accuTable") && !obj.isNull("accuTable") ? obj.getString("accuTable") : "";
 		String accuPath = obj.has("accuPath") && !obj.isNull("accuPath") ? obj.getString("accuPath") : "";
+		String retractFormula = obj.has("retractFormula") && !obj.isNull("retractFormula") ? obj.getString("retractFormula") : "";
 
 		// Descriptor is either JSON object or JSON string with an object but we want to store a string
 		String descr_string = null;
@@ -439,13 +532,14 @@ public class Schema {
 			column.setDefinitionCalc(new ColumnDefinitionCalc(calcFormula, column.expressionKind));
 		if(obj.has("linkFormula")) 
 			column.setDefinitionLink(new ColumnDefinitionLink(linkFormula, column.expressionKind));
-		if(obj.has("initFormula") || obj.has("accuFormula") || obj.has("initTable") || obj.has("initPath")) 
-			column.setDefinitionAccu(new ColumnDefinitionAccu(initFormula, accuFormula, null, accuTable, accuPath, column.expressionKind));
+		if(obj.has("initFormula") || obj.has("accuFormula") || obj.has("retractFormula") || obj.has("initTable") || obj.has("initPath")) 
+			column.setDefinitionAccu(new ColumnDefinitionAccu(initFormula, accuFormula, null, retractFormula, accuTable, accuPath, column.expressionKind));
 	}
 
 	public void deleteColumn(String id) {
 		Column col = this.getColumnById(id);
-		this.columns.remove(col);
+		if(col == null) return;
+		this.removeColumn(col);
 	}
 
 	public static List<String> readColumnNamesFromCsvFile(String fileName) {
@@ -487,6 +581,9 @@ public class Schema {
 			if(!col.isDerived()) continue;
 			col.translate();
 		}
+
+		// Build the dependency graph (if dependencies have been changed)
+		this.getDependencyGraph();
 	}
 
 	//
@@ -508,33 +605,120 @@ public class Schema {
 	 * Evaluate all columns of the schema which can be evaluated and need evaluation (dirty output).
 	 * 
 	 * The order of column evaluation is determined by the dependency graph.
+	 * Columns of one layer of the graph do not depend on each other and are evaluated concurrently if an executor has been set. The next layer starts only after the previous one is finished.
 	 * Can evaluate depends on the error status: translate errors, evaluate errors, self-dependence errors, and these errors in dependencies.
-	 * Need evaluate depends on formula changes, data output changes, set changes, and these changes in dependencies.
+	 * Need evaluate depends on formula changes, data output changes, set changes, and these changes in dependencies. Columns which do not need evaluation are skipped.
 	 * 
-	 * Finally, the status of each evaluated column is cleaned (made up-to-date). 
+	 * Finally, the status of each evaluated column is cleaned (made up-to-date) and the records marked for deletion are physically removed. 
+	 * If the thread is interrupted while waiting for concurrent evaluation then CancellationException is thrown and nothing is removed.
 	 */
 	public void evaluate() {
 		
-		List<Column> done = new ArrayList<Column>();
-		for(List<Column> cols = this.getStartingColumns(); cols.size() > 0; cols = this.getNextColumnsEvaluatable(done)) { // Loop on expansion layers of dependencies forward
+		for(List<Column> cols : this.getDependencyGraph().layers) { // Loop on expansion layers of dependencies forward
+			List<Column> layer = new ArrayList<Column>();
 			for(Column col : cols) {
 				if(!col.isDerived()) continue;
+				if(!col.isEvaluationNeeded()) continue; // Clean columns are skipped
 				// TODO: Detect also evaluate errors that could have happened before in this same evaluate loop and prevent this column from evaluation
 				// Evaluate errors have to be also taken into account when generating next layer of columns
 				DcError de = col.getTranslateError();
 				if(de == null || de.code == DcErrorCode.NONE) {
-					col.evaluate();
+					layer.add(col);
 				}
 			}
-			done.addAll(cols);
+
+			if(this.executor == null) {
+				layer.forEach(x -> x.evaluate());
+			}
+			else {
+				this.evaluateConcurrently(layer);
+			}
+		}
+
+		// Deleted records have been processed and can be physically removed
+		for(Table tab : this.tables) {
+			tab.gc();
 		}
 
 		this.setEvaluateTime(); // Store the time of evaluation
+
+		if(this.snapshot != null) { // Publish the new state for readers
+			this.snapshot = new SchemaSnapshot(this, this.snapshot.getVersion() + 1);
+		}
+	}
+
+	//
+	// Snapshots
+	//
+
+	// Data state as of the last completed evaluation. It is published only if snapshots are used.
+	protected volatile SchemaSnapshot snapshot;
+
+	/**
+	 * Return a read-only view of the data as of the last completed evaluation. It never blocks and can be called from any thread.
+	 * The first call creates a snapshot of the current state and hence it should not be made during evaluation or append. After that, a new snapshot is created at the end of each evaluation.
+	 */
+	public SchemaSnapshot snapshot() {
+		SchemaSnapshot s = this.snapshot;
+		if(s == null) {
+			s = new SchemaSnapshot(this, 0);
+			this.snapshot = s;
+		}
+		return s;
 	}
 	
+	// Evaluate independent columns in the executor and wait until all of them are finished
+	protected void evaluateConcurrently(List<Column> layer) {
+
+		// Link columns can append records to their output tables which changes all columns of these tables so they are evaluated sequentially before others
+		List<Column> others = new ArrayList<Column>();
+		for(Column col : layer) {
+			if(col.getKind() == DcColumnKind.LINK) col.evaluate();
+			else others.add(col);
+		}
+
+		if(others.size() <= 1) { // Nothing to parallelize
+			others.forEach(x -> x.evaluate());
+			return;
+		}
+
+		List<Callable<Void>> tasks = others.stream().map(x -> (Callable<Void>) () -> { x.evaluate(); return null; }).collect(Collectors.<Callable<Void>>toList());
+
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		try {
+			futures = this.executor.invokeAll(tasks);
+			for(Future<Void> f : futures) {
+				f.get();
+			}
+		}
+		catch (InterruptedException e) { // Evaluation is aborted because the next layers (and gc) must not see columns which have not been evaluated
+			futures.forEach(x -> x.cancel(true));
+			Thread.currentThread().interrupt();
+			CancellationException ce = new CancellationException("Evaluation has been interrupted.");
+			ce.initCause(e);
+			throw ce;
+		}
+		catch (ExecutionException e) { // Same exception as in the case of sequential evaluation
+			if(e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
 	//
 	// Dependency graph (needed to determine the order of column evaluations, generated by translation)
 	//
+
+	// It is built once and then reused until dependencies or the set of columns are changed
+	protected DependencyGraph graph;
+	protected DependencyGraph getDependencyGraph() {
+		if(this.graph == null) {
+			this.graph = new DependencyGraph(this.columns);
+		}
+		return this.graph;
+	}
+	protected void dependenciesChanged() {
+		this.graph = null;
+	}
 	
 	protected List<Column> getStartingColumns() { // Return all columns which do not depend on other columns (starting nodes in the dependency graph)
 		List<Column> res = this.columns.stream().filter(x -> x.isStartingColumn()).collect(Collectors.<Column>toList());
@@ -585,6 +769,303 @@ public class Schema {
 		return ret;
 	}
 
+	//
+	// Persistence
+	//
+
+	public static final String MANIFEST_FILE = "schema.json";
+
+	// Directory where numeric columns are stored in memory-mapped files along with the manifest describing the schema. Null means that all data is stored only in memory.
+	protected File directory;
+	public File getDirectory() {
+		return this.directory;
+	}
+
+	// Files of deleted columns. They are deleted only after the manifest does not reference them anymore.
+	protected List<File> removedFiles = new ArrayList<File>();
+	protected void fileRemoved(File file) {
+		this.removedFiles.add(file);
+	}
+
+	/**
+	 * Open the schema stored in the directory or create a new (empty) schema if the directory does not have a manifest.
+	 * Values of numeric columns are mapped from their files without reading them. Other columns are not persistent: derived columns will be evaluated and user columns have null values.
+	 */
+	public static Schema open(File directory) throws IOException {
+		directory.mkdirs();
+		File manifestFile = new File(directory, MANIFEST_FILE);
+
+		Schema schema;
+		if(manifestFile.exists()) {
+			JSONObject manifest = new JSONObject(new String(Files.readAllBytes(manifestFile.toPath()), StandardCharsets.UTF_8));
+			schema = Schema.fromManifest(manifest, directory, false);
+		}
+		else {
+			schema = new Schema(directory.getName());
+		}
+
+		schema.directory = directory;
+		return schema;
+	}
+
+	/**
+	 * Write all changed values to the files and store the current structure and state of the schema in the manifest.
+	 * The manifest is replaced atomically so the schema can be always opened in the state of some flush.
+	 */
+	public void flush() throws IOException {
+		if(this.directory == null) {
+			throw new IllegalStateException("Schema does not have a directory.");
+		}
+
+		// Values
+		for(Column col : this.columns) {
+			ColumnStorage storage = col.getData().getStorage();
+			if(storage instanceof ColumnStorageMapped) ((ColumnStorageMapped)storage).force();
+		}
+
+		// Structure and state
+		Schema.writeManifest(this.directory, MANIFEST_FILE, this.toManifest(true));
+
+		// Deleted columns are not referenced anymore
+		this.removedFiles.forEach(x -> x.delete());
+		this.removedFiles.clear();
+	}
+
+	// Flush and release files
+	public void close() throws IOException {
+		if(this.directory == null) return;
+		this.flush();
+		for(Column col : this.columns) {
+			col.getData().close();
+		}
+	}
+
+	// Description of tables, columns and their data state. File names of columns are stored only if requested.
+	protected JSONObject toManifest(boolean withFiles) {
+		JSONObject manifest = new JSONObject();
+		manifest.put("schema", new JSONObject(this.toJson()).put("minEvaluationFrequency", this.minEvaluationFrequency));
+
+		JSONArray tabs = new JSONArray();
+		for(Table tab : this.tables) {
+			if(tab.isPrimitive()) continue;
+			JSONObject obj = new JSONObject(tab.toJson());
+			obj.put("maxAge", tab.getMaxAge());
+			obj.put("idRange", Schema.rangeToJson(tab.idRange));
+			obj.put("delRange", Schema.rangeToJson(tab.delRange));
+			tabs.put(obj);
+		}
+		manifest.put("tables", tabs);
+
+		JSONArray cols = new JSONArray();
+		for(Column col : this.columns) {
+			JSONObject obj = new JSONObject();
+			obj.put("id", col.getId().toString());
+			obj.put("name", col.getName());
+			obj.put("input", col.getInput().getName());
+			obj.put("output", col.getOutput() != null ? col.getOutput().getName() : JSONObject.NULL);
+			obj.put("kind", col.getKind().getValue());
+			obj.put("expressionKind", col.expressionKind.getValue());
+			obj.put("calcFormula", col.getDefinitionCalc() == null ? "" : col.getDefinitionCalc().getFormula());
+			obj.put("linkFormula", col.getDefinitionLink() == null ? "" : col.getDefinitionLink().getFormula());
+			ColumnDefinitionAccu accu = col.getDefinitionAccu();
+			obj.put("initFormula", accu == null ? "" : accu.getInitFormula());
+			obj.put("accuFormula", accu == null ? "" : accu.getAccuFormula());
+			obj.put("finFormula", accu == null || accu.getFinFormula() == null ? "" : accu.getFinFormula());
+			obj.put("retractFormula", accu == null || accu.getRetractFormula() == null ? "" : accu.getRetractFormula());
+			obj.put("accuTable", accu == null ? "" : accu.getAccuTable());
+			obj.put("accuPath", accu == null ? "" : accu.getAccuPath());
+
+			ColumnData data = col.getData();
+			obj.put("delRange", Schema.rangeToJson(data.delRange));
+			obj.put("cleanRange", Schema.rangeToJson(data.cleanRange));
+			obj.put("newRange", Schema.rangeToJson(data.newRange));
+			if(withFiles && data.getFile() != null) obj.put("file", data.getFile().getName());
+
+			// Evaluation state (so that up-to-date columns are not evaluated again)
+			obj.put("formulaDirty", col.isFormulaDirty());
+			obj.put("changeVersion", data.changeVersion);
+			obj.put("evaluatedVersion", col.evaluatedVersion);
+			obj.put("evaluatedDataVersion", col.evaluatedDataVersion);
+			if(col.accuRange != null) obj.put("accuRange", Schema.rangeToJson(col.accuRange));
+			cols.put(obj);
+		}
+		manifest.put("columns", cols);
+
+		return manifest;
+	}
+
+	// Create a schema from the manifest. Values of columns with files are mapped from the directory. Values of columns with dumps are read from the dumps (checkpoint).
+	protected static Schema fromManifest(JSONObject manifest, File directory, boolean dumps) throws IOException {
+		JSONObject obj = manifest.getJSONObject("schema");
+		Schema schema = new Schema(obj.getString("name"));
+		schema.afterAppend = obj.optLong("afterAppend", -1);
+		schema.minEvaluationFrequency = obj.optLong("minEvaluationFrequency", -1);
+
+		JSONObject log = manifest.optJSONObject("appendLog");
+		if(log != null) {
+			schema.checkpointLogGeneration = log.getLong("generation");
+			schema.checkpointLogPosition = log.getLong("position");
+		}
+
+		// Tables (without records)
+		JSONArray tabs = manifest.getJSONArray("tables");
+		for(int i=0; i<tabs.length(); i++) {
+			schema.createTable(tabs.getJSONObject(i).getString("name"));
+		}
+
+		// Columns (without values)
+		JSONArray cols = manifest.getJSONArray("columns");
+		List<Column> columns = new ArrayList<Column>();
+		for(int i=0; i<cols.length(); i++) {
+			JSONObject c = cols.getJSONObject(i);
+			Column col = schema.createColumn(c.getString("input"), c.getString("name"), c.isNull("output") ? null : c.getString("output"));
+			ExpressionKind expressionKind = ExpressionKind.fromInt(c.getInt("expressionKind"));
+			col.setDefinitionCalc(new ColumnDefinitionCalc(c.getString("calcFormula"), expressionKind));
+			col.setDefinitionLink(new ColumnDefinitionLink(c.getString("linkFormula"), expressionKind));
+			col.setDefinitionAccu(new ColumnDefinitionAccu(c.getString("initFormula"), c.getString("accuFormula"), c.getString("finFormula"), c.getString("retractFormula"), c.getString("accuTable"), c.getString("accuPath"), expressionKind));
+			col.setKind(DcColumnKind.fromInt(c.getInt("kind")));
+			col.expressionKind = expressionKind;
+			columns.add(col);
+		}
+
+		// Data state
+		for(int i=0; i<cols.length(); i++) {
+			JSONObject c = cols.getJSONObject(i);
+			Range delRange = Schema.rangeFromJson(c.getJSONArray("delRange"));
+			Range newRange = Schema.rangeFromJson(c.getJSONArray("newRange"));
+			Column col = columns.get(i);
+			ColumnStorage storage = null;
+			if(dumps) {
+				storage = ColumnStorageDump.read(new File(directory, c.getString("dump")));
+			}
+			else if(c.has("file") && ColumnData.isLink(col.getOutput())) {
+				storage = new ColumnStorageMappedLong(new File(directory, c.getString("file")), delRange.start, newRange.end);
+			}
+			else if(c.has("file")) {
+				storage = new ColumnStorageMappedDouble(new File(directory, c.getString("file")), delRange.start, newRange.end);
+			}
+			col.getData().restore(delRange, Schema.rangeFromJson(c.getJSONArray("cleanRange")), newRange, storage);
+
+			col.getData().changeVersion = c.optLong("changeVersion", 0);
+			col.evaluatedVersion = c.optLong("evaluatedVersion", -1);
+			col.evaluatedDataVersion = c.optLong("evaluatedDataVersion", -1);
+			col.accuRange = c.has("accuRange") ? Schema.rangeFromJson(c.getJSONArray("accuRange")) : null;
+			if(!c.optBoolean("formulaDirty", true)) col.setFormulaClean();
+		}
+		for(int i=0; i<tabs.length(); i++) {
+			JSONObject t = tabs.getJSONObject(i);
+			Table tab = schema.getTable(t.getString("name"));
+			tab.restore(Schema.rangeFromJson(t.getJSONArray("idRange")), Schema.rangeFromJson(t.getJSONArray("delRange")));
+			tab.setMaxLength(t.optLong("maxLength", -1));
+			tab.setMaxAge(t.optLong("maxAge", -1));
+		}
+
+		return schema;
+	}
+
+	//
+	// Append log
+	//
+
+	// Appended records are written to this log (if any) before they are really appended
+	protected AppendLog appendLog;
+	public AppendLog getAppendLog() {
+		return this.appendLog;
+	}
+	public void setAppendLog(AppendLog appendLog) {
+		this.appendLog = appendLog;
+		if(appendLog == null) return;
+		try {
+			appendLog.checkpointRestored(this); // New records must not look like records of the checkpoint
+		}
+		catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// State of the log stored in the checkpoint from which this schema has been restored (records before the position are in the checkpoint)
+	protected Long checkpointLogGeneration;
+	protected long checkpointLogPosition;
+
+	//
+	// Checkpoint
+	//
+
+	public static final String CHECKPOINT_FILE = "checkpoint.json";
+
+	/**
+	 * Write the complete state of the schema (structure and values of all columns) to the directory.
+	 * Each column is stored in a binary file and the manifest references the files of the last checkpoint. Files of previous checkpoints are deleted after the manifest has been replaced.
+	 * It has to be called when the schema is not changed (e.g., by the thread which appends and evaluates).
+	 */
+	public void checkpoint(File directory) throws IOException {
+		directory.mkdirs();
+		String suffix = "-" + UUID.randomUUID() + ".dump"; // Files of this checkpoint
+
+		JSONObject manifest = this.toManifest(false);
+		if(this.appendLog != null) { // Records in the log until this position are stored in the checkpoint
+			this.appendLog.commit();
+			manifest.put("appendLog", new JSONObject().put("generation", this.appendLog.getGeneration()).put("position", this.appendLog.getPosition()));
+		}
+		JSONArray cols = manifest.getJSONArray("columns");
+		Set<String> files = new HashSet<String>();
+		for(int i=0; i<this.columns.size(); i++) {
+			Column col = this.columns.get(i);
+			ColumnData data = col.getData();
+			String fileName = col.getId() + suffix;
+			ColumnStorageDump.write(data.getStorage(), data.delRange.start, data.newRange.end, new File(directory, fileName));
+			cols.getJSONObject(i).put("dump", fileName);
+			files.add(fileName);
+		}
+
+		// Dumps are durable before the manifest references them and the manifest is durable before the log is truncated
+		Schema.writeManifest(directory, CHECKPOINT_FILE, manifest);
+
+		// Records appended before the checkpoint are not needed for recovery anymore
+		if(this.appendLog != null) this.appendLog.truncate();
+
+		// Previous checkpoints
+		File[] old = directory.listFiles((dir, name) -> name.endsWith(".dump") && !files.contains(name));
+		if(old != null) {
+			for(File file : old) file.delete();
+		}
+	}
+
+	// Create a schema (stored in memory) from the last checkpoint in the directory
+	public static Schema restore(File directory) throws IOException {
+		File manifestFile = new File(directory, CHECKPOINT_FILE);
+		JSONObject manifest = new JSONObject(new String(Files.readAllBytes(manifestFile.toPath()), StandardCharsets.UTF_8));
+		return Schema.fromManifest(manifest, directory, true);
+	}
+
+	// Replace the manifest atomically and force it (and the directory entry) to the disk
+	protected static void writeManifest(File directory, String name, JSONObject manifest) throws IOException {
+		Path manifestFile = new File(directory, name).toPath();
+		Path tempFile = new File(directory, name + ".tmp").toPath();
+		try(FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer bytes = ByteBuffer.wrap(manifest.toString(2).getBytes(StandardCharsets.UTF_8));
+			while(bytes.hasRemaining()) channel.write(bytes);
+			channel.force(true);
+		}
+		Files.move(tempFile, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		Schema.forceDirectory(directory);
+	}
+	protected static void forceDirectory(File directory) {
+		try(FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+		catch(IOException e) {
+			// Some platforms (e.g., Windows) cannot open directories and do not need it
+		}
+	}
+
+	protected static JSONArray rangeToJson(Range range) {
+		return new JSONArray().put(range.start).put(range.end);
+	}
+	protected static Range rangeFromJson(JSONArray arr) {
+		return new Range(arr.getLong(0), arr.getLong(1));
+	}
+
 	//
 	// Serialization and construction
 	//
@@ -666,3 +1147,84 @@ public class Schema {
 	}
 
 }
+
+/**
+ * Dependency graph of columns and the plan of their evaluation.
+ * Columns are split into layers (topological order) where the columns of one layer depend only on the columns of previous layers.
+ * The first layer consists of all starting columns. Columns with translation errors (own or in their dependencies) are not included into next layers and hence also the columns which depend on them.
+ * Columns in cycles never get into any layer.
+ */
+class DependencyGraph {
+
+	List<List<Column>> layers = new ArrayList<List<Column>>();
+
+	Map<Column, List<Column>> next = new HashMap<Column, List<Column>>(); // Reverse adjacency: columns which directly depend on the column
+
+	private Map<Column, Set<Column>> upstream = new HashMap<Column, Set<Column>>(); // All direct and indirect dependencies (computed on demand)
+
+	// All columns this column depends on directly or indirectly. It includes the column itself if it is in a cycle.
+	public Set<Column> getUpstream(Column col) {
+		Set<Column> ret = this.upstream.get(col);
+		if(ret != null) return ret;
+
+		ret = new LinkedHashSet<Column>(); // Breadth-first order
+		List<Column> queue = new ArrayList<Column>(col.getDependencies());
+		for(int i = 0; i < queue.size(); i++) {
+			Column dep = queue.get(i);
+			if(!ret.add(dep)) continue;
+			queue.addAll(dep.getDependencies());
+		}
+		this.upstream.put(col, ret);
+		return ret;
+	}
+
+	public boolean isCyclic(Column col) {
+		return this.getUpstream(col).contains(col);
+	}
+
+	private static boolean hasTranslateError(Column col) {
+		DcError de = col.getTranslateError();
+		return de != null && de.code != DcErrorCode.NONE;
+	}
+
+	public DependencyGraph(List<Column> columns) {
+
+		// Number of distinct dependencies which have not been evaluated yet
+		Map<Column, Integer> remaining = new HashMap<Column, Integer>();
+		for(Column col : columns) {
+			Set<Column> deps = new HashSet<Column>(col.getDependencies());
+			remaining.put(col, deps.size());
+			for(Column dep : deps) {
+				this.next.computeIfAbsent(dep, x -> new ArrayList<Column>()).add(col);
+			}
+		}
+
+		Set<Column> done = new HashSet<Column>();
+
+		List<Column> layer = new ArrayList<Column>();
+		for(Column col : columns) {
+			if(col.isStartingColumn()) layer.add(col);
+		}
+
+		while(!layer.isEmpty()) {
+			this.layers.add(layer);
+			done.addAll(layer);
+
+			List<Column> nextLayer = new ArrayList<Column>();
+			for(Column col : layer) {
+				for(Column n : this.next.getOrDefault(col, new ArrayList<Column>())) {
+					int count = remaining.getOrDefault(n, -1) - 1;
+					remaining.put(n, count);
+					if(count != 0 || done.contains(n)) continue; // Not all dependencies are evaluated
+
+					// Columns with errors (own or in dependencies) cannot be evaluated
+					if(hasTranslateError(n)) continue;
+					if(n.getDependencies().stream().anyMatch(x -> hasTranslateError(x))) continue;
+
+					nextLayer.add(n);
+				}
+			}
+			layer = nextLayer;
+		}
+	}
+}
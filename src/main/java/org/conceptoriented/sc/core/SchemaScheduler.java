@@ -0,0 +1,186 @@
+package org.conceptoriented.sc.core;
+
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * It owns a schema and evaluates it in the background according to the auto-evaluation rules of the schema.
+ *
+ * After append: evaluation is triggered when afterAppend milliseconds have passed since the first append after the last evaluation.
+ * Thus the schema is dirty at most during this time and all appends during this time (bursts) are evaluated together.
+ * Zero means evaluation as soon as possible after an append (still coalescing appends which happen during evaluation).
+ *
+ * Regular intervals: if minEvaluationFrequency is positive then evaluation is also triggered every so many milliseconds.
+ * Time ticks are aligned with calendar units (multiples of the interval since the epoch), e.g., every full minute.
+ *
+ * All evaluations are performed by one background thread so two evaluations never run at the same time.
+ * Appends and evaluations exclude each other by means of the lock so data has to be appended via this object (or while holding its lock).
+ */
+public class SchemaScheduler {
+
+	private final Schema schema;
+	public Schema getSchema() {
+		return this.schema;
+	}
+
+	// Appends and evaluations are protected by this lock
+	private final ReentrantLock lock = new ReentrantLock();
+	public ReentrantLock getLock() {
+		return this.lock;
+	}
+
+	private ScheduledThreadPoolExecutor executor;
+
+	private ScheduledFuture<?> pendingEvaluation; // Evaluation scheduled after append (at most one)
+	private ScheduledFuture<?> regularEvaluation; // Evaluation at regular intervals
+
+	private RuntimeException lastError; // Error of the last failed evaluation
+	public RuntimeException getLastError() {
+		return this.lastError;
+	}
+
+	private volatile long evaluationCount = 0; // Number of evaluations performed by this scheduler
+	public long getEvaluationCount() {
+		return this.evaluationCount;
+	}
+
+	private final Object evaluated = new Object(); // Notified after each evaluation
+
+	// Wait until the specified number of evaluations have been performed. Returns false if the timeout elapsed before.
+	public boolean awaitEvaluationCount(long count, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized(this.evaluated) {
+			while(this.evaluationCount < count) {
+				long remaining = deadline - System.currentTimeMillis();
+				if(remaining <= 0) return false;
+				this.evaluated.wait(remaining);
+			}
+		}
+		return true;
+	}
+
+	//
+	// Start and stop
+	//
+
+	public synchronized void start() {
+		if(this.executor != null) return; // Already started
+
+		this.executor = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread thread = new Thread(r, "schema-scheduler-" + this.schema.getName());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(true); // Data appended before stop is evaluated
+		this.executor.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
+
+		long period = this.schema.getMinEvaluationFrequency();
+		if(period > 0) {
+			long initialDelay = period - (System.currentTimeMillis() % period); // Align with calendar units
+			this.regularEvaluation = this.executor.scheduleAtFixedRate(() -> this.evaluate(), initialDelay, period, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// Stop regular evaluations. A pending evaluation after append is still performed and the method waits for it.
+	public void stop() {
+		ScheduledThreadPoolExecutor executor;
+		synchronized(this) { // The monitor must not be held while waiting because evaluations need it
+			executor = this.executor;
+			this.executor = null;
+			this.regularEvaluation = null;
+		}
+		if(executor == null) return;
+
+		executor.shutdown();
+		try {
+			executor.awaitTermination(1, TimeUnit.MINUTES); // Let the current evaluation finish
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized(this) {
+			this.pendingEvaluation = null;
+		}
+	}
+
+	//
+	// Append
+	//
+
+	public long append(String table, Record record) {
+		Table tab = this.schema.getTable(table);
+
+		long id;
+		this.lock.lock();
+		try {
+			id = tab.append(record);
+		}
+		finally {
+			this.lock.unlock();
+		}
+
+		this.appended();
+		return id;
+	}
+	public void append(String table, List<Record> records) {
+		Table tab = this.schema.getTable(table);
+
+		this.lock.lock();
+		try {
+			tab.append(records, null);
+		}
+		finally {
+			this.lock.unlock();
+		}
+
+		this.appended();
+	}
+
+	// Notify about new data which has been appended directly (while holding the lock)
+	public synchronized void appended() {
+		if(this.executor == null) return; // Not started
+		if(this.schema.afterAppend < 0) return; // Auto-evaluation after append is turned off
+		if(this.pendingEvaluation != null && !this.pendingEvaluation.isDone()) return; // Will be evaluated together with previous appends
+
+		this.pendingEvaluation = this.executor.schedule(() -> this.evaluate(), this.schema.afterAppend, TimeUnit.MILLISECONDS);
+	}
+
+	//
+	// Evaluate
+	//
+
+	protected void evaluate() {
+		synchronized(this) {
+			// Appends from now on need a new evaluation because the current one might not see them
+			if(this.pendingEvaluation != null && this.pendingEvaluation.isDone() == false) {
+				this.pendingEvaluation = null;
+			}
+		}
+
+		this.lock.lock();
+		try {
+			this.schema.translate();
+			this.schema.evaluate();
+			this.lastError = null;
+		}
+		catch(RuntimeException e) { // The scheduler has to continue working
+			this.lastError = e;
+		}
+		finally {
+			this.lock.unlock();
+		}
+
+		synchronized(this.evaluated) {
+			this.evaluationCount++;
+			this.evaluated.notifyAll();
+		}
+	}
+
+	public SchemaScheduler(Schema schema) {
+		this.schema = schema;
+	}
+}
@@ -0,0 +1,56 @@
+package org.conceptoriented.sc.core;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Read-only consistent view of the data of a schema at the end of some evaluation.
+ *
+ * Snapshots do not copy the data. They share storage chunks with the columns which copy a chunk before changing it (copy on write).
+ * Therefore, snapshots can be read from other threads while the schema is being changed or evaluated.
+ */
+public class SchemaSnapshot {
+
+	private final Schema schema;
+	public Schema getSchema() {
+		return this.schema;
+	}
+
+	// It is incremented for each new snapshot of the schema
+	private final long version;
+	public long getVersion() {
+		return this.version;
+	}
+
+	private final Instant evaluateTime;
+	public Instant getEvaluateTime() {
+		return this.evaluateTime;
+	}
+
+	private final Map<String, TableSnapshot> tables = new LinkedHashMap<String, TableSnapshot>();
+	private final Map<String, TableSnapshot> tableNames = new TreeMap<String, TableSnapshot>(String.CASE_INSENSITIVE_ORDER); // Case-insensitive lookup like in the schema
+	public List<TableSnapshot> getTables() {
+		return new ArrayList<TableSnapshot>(this.tables.values());
+	}
+	public TableSnapshot getTable(String table) {
+		return this.tableNames.get(table);
+	}
+
+	// It has to be created by the thread which changes the schema
+	protected SchemaSnapshot(Schema schema, long version) {
+		this.schema = schema;
+		this.version = version;
+		this.evaluateTime = schema.evaluateTime;
+
+		for(Table tab : schema.getTables()) {
+			if(tab.isPrimitive()) continue;
+			TableSnapshot snapshot = new TableSnapshot(tab);
+			this.tables.put(tab.getName(), snapshot);
+			this.tableNames.putIfAbsent(tab.getName(), snapshot);
+		}
+	}
+}
@@ -2,7 +2,10 @@ package org.conceptoriented.sc.core;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -24,7 +27,9 @@ public class Table {
 		return name;
 	}
 	public void setName(String name) {
+		String oldName = this.name;
 		this.name = name;
+		if(this.schema != null) this.schema.tableRenamed(this, oldName); // Update lookup maps
 	}
 	
 	public boolean isPrimitive() {
@@ -49,8 +54,22 @@ public class Table {
 	// Rules for automatic population and de-population (similar to auto-evaluation)
 	//
 
-	// Max age. Old records will be automatically deleted. 0 means immediate deletion of new records. MAX, NULL or -1 mean any age and hence no auto-deletion.  
+	// Max age (milliseconds). Old records will be automatically deleted. 0 means immediate deletion of new records. MAX, NULL or -1 mean any age and hence no auto-deletion.  
 	protected long maxAge = -1;  
+	public long getMaxAge() {
+		return this.maxAge;
+	}
+	public void setMaxAge(long maxAge) {
+		if(maxAge >= 0 && this.maxAge < 0) { // Existing records do not have time stamps so we assume that they have been just appended
+			long now = System.currentTimeMillis();
+			this.appendTimes.allocate(this.idRange.end);
+			for(long i=this.idRange.start; i<this.idRange.end; i++) {
+				this.appendTimes.setLong(i, now);
+			}
+		}
+		this.maxAge = maxAge;
+		this.autodelete();
+	}
 
 	// If more rows are added then then the oldest will be marked for deletion.  
 	// The real deletion happens only after evaluation.
@@ -63,34 +82,83 @@ public class Table {
 		if(maxLength == this.maxLength) {
 			return;
 		}
-		if(maxLength < 0) {
-			// Remove all del-markers. Any length is possible.
-		}
-		else if(maxLength > this.maxLength) {
-			// Remove some del-markers until fit into new max length
-		}
-		else {
-			// Add some del-markers to fit into the new max length
-		}
 
 		this.maxLength = maxLength;
+
+		// Column storage works as a circular buffer for the window of this size
+		long retention = maxLength > 0 ? maxLength : -1; // Any length is possible
+		for(Column column : schema.getColumns(this.getName())) {
+			column.getData().getStorage().setRetention(retention);
+		}
+		this.appendTimes.setRetention(retention);
+
+		// Add some del-markers to fit into the new max length
+		this.autodelete();
 	}
 	
+	// Append time of each record (milliseconds). It is used to delete records which are older than max age.
+	protected ColumnStorageLong appendTimes = new ColumnStorageLong(0);
+
 	// Decide if deletion is needed and delete
 	public void autodelete() {
-		if(this.maxLength == 0) {
-			return;
-		}
+
+		long end = this.idRange.start; // Records before this id have to be deleted
 
 		// length <= maxLength
-		long excess = this.idRange.getLength() - this.maxLength;
-		if(excess <= 0) {
+		if(this.maxLength > 0) {
+			long excess = this.idRange.getLength() - this.maxLength;
+			if(excess > 0) {
+				end = this.idRange.start + excess;
+			}
+		}
+
+		// age <= maxAge (records are ordered by their append time)
+		if(this.maxAge >= 0) {
+			long minTime = System.currentTimeMillis() - this.maxAge;
+			while(end < this.idRange.end && this.appendTimes.getLong(end) <= minTime) {
+				end++;
+			}
+		}
+
+		if(end <= this.idRange.start) {
 			return;
 		}
 
-		// There are more records than the maximum. Delete last records
-		Range delRange = new Range(this.idRange.start, this.idRange.start + excess);
+		// There are more records than the maximum. Delete first (oldest) records
+		Range delRange = new Range(this.idRange.start, end);
 		this.remove(delRange);
+
+		// Too many deleted records are waiting for evaluation (it is not performed). Free the memory anyway
+		if(this.maxLength > 0 && this.delRange.getLength() > this.maxLength) {
+			this.gc();
+		}
+	}
+
+	//
+	// Garbage collection
+	//
+
+	// Records marked for deletion but still physically stored (for evaluation). They precede the id range.
+	protected Range delRange = new Range();
+	public Range getDelRange() {
+		return new Range(this.delRange);
+	}
+
+	// Physically delete the records marked for deletion. It is done after evaluation.
+	public void gc() {
+		if(this.delRange.getLength() == 0) {
+			return;
+		}
+
+		// Get all outgoing columns
+		List<Column> columns = schema.getColumns(this.getName());
+
+		for(Column column : columns) { // We must delete from all columns
+			column.getData().gc();
+		}
+		this.appendTimes.release(this.idRange.start);
+
+		this.delRange.start = this.delRange.end;
 	}
 
 	//
@@ -106,6 +174,13 @@ public class Table {
 	}
 
 	public long append(Record record) {
+		AppendLog log = this.schema.getAppendLog();
+		if(log != null) log.append(this, record); // Write ahead
+
+		return this.appendRecord(record);
+	}
+	// Append without logging (e.g., derived records or replay)
+	protected long appendRecord(Record record) {
 
 		// Get all outgoing columns
 		List<Column> columns = this.schema.getColumns(this.getName());
@@ -122,9 +197,18 @@ public class Table {
 		this.idRange.end++;
 
 		setAppendTime(); // Store the time of append operation
+		if(this.maxAge >= 0) {
+			this.appendTimes.allocate(this.idRange.end);
+			this.appendTimes.setLong(this.idRange.end - 1, System.currentTimeMillis());
+		}
+
+		// Update indexes
+		for(TableIndex index : this.indexes) {
+			index.add(this.idRange.end - 1);
+		}
 
 		// If too many records then mark some of them (in the beginning) for deletion (mark dirty)
-		//this.autodelete();
+		this.autodelete();
 		
 		return this.idRange.end - 1;
 	}
@@ -134,18 +218,107 @@ public class Table {
 		}
 	}
 
+	// Append all rows of the batch. Each column is written in one pass. Returns the id of the first appended record.
+	public long append(ColumnBatch batch) {
+		if(batch.getTable() != this) {
+			throw new IllegalArgumentException("Batch does not belong to table " + this.getName());
+		}
+
+		AppendLog log = this.schema.getAppendLog();
+		if(log != null && batch.getLength() > 0) log.append(batch); // Write ahead
+
+		return this.appendBatch(batch);
+	}
+	// Append without logging (replay)
+	protected long appendBatch(ColumnBatch batch) {
+		int length = batch.getLength();
+		long start = this.idRange.end;
+		if(length == 0) return start;
+
+		// Get all outgoing columns
+		List<Column> columns = this.schema.getColumns(this.getName());
+
+		for(Column column : columns) { // Columns without values are appended with nulls
+			column.getData().appendValues(batch.getArrays().get(column), batch.getNulls().get(column), length);
+		}
+
+		this.idRange.end += length;
+
+		setAppendTime(); // Store the time of append operation
+		if(this.maxAge >= 0) {
+			long now = System.currentTimeMillis();
+			this.appendTimes.allocate(this.idRange.end);
+			for(long i=start; i<this.idRange.end; i++) {
+				this.appendTimes.setLong(i, now);
+			}
+		}
+
+		// Update indexes
+		for(TableIndex index : this.indexes) {
+			for(long i=start; i<this.idRange.end; i++) {
+				index.add(i);
+			}
+		}
+
+		// If too many records then mark some of them (in the beginning) for deletion (mark dirty)
+		this.autodelete();
+
+		return start;
+	}
+
 	public long find(Record record, boolean append) {
 
 		List<String> names = record.getNames();
 		List<Object> values = names.stream().map(x -> record.get(x)).collect(Collectors.<Object>toList());
 		List<Column> columns = names.stream().map(x -> this.getSchema().getColumn(this.getName(), x)).collect(Collectors.<Column>toList());
 		
+		long index = -1;
+
+		TableIndex tableIndex = this.getIndex(columns, false);
+		if(tableIndex != null) { // Use index instead of scanning
+			Object[] keyValues = new Object[columns.size()];
+			for(int j=0; j<columns.size(); j++) {
+				keyValues[tableIndex.columns.indexOf(columns.get(j))] = values.get(j);
+			}
+			index = tableIndex.find(keyValues);
+		}
+		else {
+			index = this.scan(columns, values);
+		}
+		
+		// If not found then append if requested
+		if(index < 0 && append) {
+			index = this.appendRecord(record); // Derived records are not logged
+		}
+
+		return index;
+	}
+	protected long scan(List<Column> columns, List<Object> values) {
 		Range searchRange = this.idRange;
 		long index = -1;
+
+		// Dictionary-encoded columns are compared by codes (strings are not compared)
+		ColumnStorageString[] encoded = new ColumnStorageString[columns.size()];
+		int[] codes = new int[columns.size()];
+		for(int j=0; j<columns.size(); j++) {
+			ColumnStorage storage = columns.get(j).getData().getStorage();
+			Object recordValue = values.get(j);
+			if(!(storage instanceof ColumnStorageString) || !(recordValue == null || recordValue instanceof String)) continue;
+
+			encoded[j] = (ColumnStorageString)storage;
+			codes[j] = encoded[j].getDictionary().find(recordValue);
+			if(recordValue != null && codes[j] == ColumnStorageString.NULL) return -1; // No record has this value
+		}
+
 		for(long i=searchRange.start; i<searchRange.end; i++) { // Scan all records and compare
 
 			boolean found = true;
-			for(int j=0; j<names.size(); j++) {
+			for(int j=0; j<columns.size(); j++) {
+				if(encoded[j] != null) {
+					if(encoded[j].getCode(i) != codes[j]) { found = false; break; }
+					continue;
+				}
+
 				// TODO: The same number in Double and Integer will not be equal. So we need cast to some common type at some level of the system or here.
 				Object recordValue = values.get(j);
 				Object columnValue = columns.get(j).getData().getValue(i);
@@ -166,30 +339,66 @@ public class Table {
 				break;
 			}
 		}
-		
-		// If not found then append if requested
-		if(index < 0 && append) {
-			index = this.append(record);
-		}
 
 		return index;
 	}
 
-	// Currently we assume that the deleted range can be only in the beginning (oldest records with smallest ids) - otherwise it will not work. Also, we assume that the deleted range is smaller than the number of records.
-	public void remove(long count) { // Remove the oldest records with lowest ids
+	//
+	// Indexes (used by find instead of scanning all records)
+	//
 
-		// Get all outgoing columns
-		List<Column> columns = schema.getColumns(this.getName());
+	protected List<TableIndex> indexes = new ArrayList<TableIndex>();
 
-		for(Column column : columns) { // We must delete from all columns
-			column.getData().remove(count);
+	// Create (if it does not exist) a hash index on the specified columns of this table. It will be automatically used by find and updated by append and remove.
+	public void createIndex(List<String> names) {
+		List<Column> columns = names.stream().map(x -> this.getSchema().getColumn(this.getName(), x)).collect(Collectors.<Column>toList());
+		this.getIndex(columns, true);
+	}
+	public void dropIndexes() {
+		for(TableIndex index : this.indexes) {
+			index.columns.forEach(x -> x.getData().isIndexed = false);
 		}
+		this.indexes.clear();
+	}
 
-		// Update the id range of the table by assuming that the specified deleted range is in the beginning
-		this.idRange.start += count;
+	// Find an index on exactly the specified columns (in any order)
+	protected TableIndex getIndex(List<Column> columns, boolean create) {
+		for(TableIndex index : this.indexes) {
+			if(index.columns.size() == columns.size() && index.columns.containsAll(columns)) {
+				if(index.isStale) index.build();
+				return index;
+			}
+		}
+		if(!create || columns.isEmpty() || columns.contains(null)) return null;
+
+		TableIndex index = new TableIndex(this, columns);
+		index.build();
+		this.indexes.add(index);
+		columns.forEach(x -> x.getData().isIndexed = true);
+		return index;
+	}
+
+	// Values of the specified column have been changed directly (not by appending) and the indexes on it are not valid anymore
+	protected void indexChanged(Column column) {
+		for(TableIndex index : this.indexes) {
+			if(index.columns.contains(column)) index.isStale = true;
+		}
+	}
+
+	// Currently we assume that the deleted range can be only in the beginning (oldest records with smallest ids) - otherwise it will not work. Also, we assume that the deleted range is smaller than the number of records.
+	// Records are only marked for deletion. They will be physically deleted after evaluation (garbage collection).
+	public void remove(long count) { // Remove the oldest records with lowest ids
+		remove(new Range(this.idRange.start, this.idRange.start + count));
 	}
 	public void remove(Range range) { // Remove records in the specified range of ids
 
+		// Update indexes (records are still physically present)
+		for(TableIndex index : this.indexes) {
+			for(long i=Long.max(range.start, this.idRange.start); i<range.end; i++) {
+				index.remove(i);
+			}
+		}
+
 		// Get all outgoing columns
 		List<Column> columns = schema.getColumns(this.getName());
 
@@ -198,6 +407,8 @@ public class Table {
 		}
 
 		// Update the id range of the table by assuming that the specified deleted range is in the beginning
+		if(this.delRange.getLength() == 0) this.delRange.start = this.idRange.start;
+		this.delRange.end = range.end;
 		this.idRange.start = range.end;
 	}
 	public void remove() { // Remove all records (full range of ids)
@@ -231,6 +442,16 @@ public class Table {
 		return records;
 	}
 
+	// Set the state which has been stored before (columns are restored separately)
+	protected void restore(Range idRange, Range delRange) {
+		this.idRange = new Range(idRange);
+		this.delRange = new Range(delRange);
+		this.appendTimes = new ColumnStorageLong(this.idRange.start);
+		for(TableIndex index : this.indexes) {
+			index.isStale = true;
+		}
+	}
+
 	//
 	// Serialization and construction
 	//
@@ -271,3 +492,127 @@ public class Table {
 	}
 
 }
+
+/**
+ * Hash index which maps a combination of values of the key columns to the first record with these values.
+ * Numbers are compared as doubles, that is, in the same way as they are compared by scanning.
+ */
+class TableIndex {
+
+	Table table;
+	List<Column> columns;
+
+	Map<Object, Long> ids = new HashMap<Object, Long>(); // First (oldest) record with the key
+
+	Map<Object, ArrayDeque<Long>> duplicates = new HashMap<Object, ArrayDeque<Long>>(); // Later records with the same key in the order of adding (only for keys with duplicates)
+	boolean isStale; // Column values have been changed and the index has to be re-built
+
+	protected static Object normalize(Object value) {
+		if(value instanceof Number) {
+			double d = ((Number)value).doubleValue();
+			if(d == 0.0) d = 0.0; // Negative zero is equal to zero
+			return d;
+		}
+		return value;
+	}
+
+	// Strings of dictionary-encoded columns are represented by their codes
+	protected Object normalize(int column, Object value) {
+		ColumnStorage storage = this.columns.get(column).getData().getStorage();
+		if(storage instanceof ColumnStorageString && value instanceof String) {
+			int code = ((ColumnStorageString)storage).getDictionary().find(value);
+			return code == ColumnStorageString.NULL ? (Object)Double.NaN : (Object)code; // Unknown string cannot match any record
+		}
+		return normalize(value);
+	}
+
+	// Key is null if it cannot match any record (NaN is not equal to itself)
+	protected Object key(Object[] values) {
+		if(values.length == 1) {
+			Object value = this.normalize(0, values[0]);
+			if(value instanceof Double && ((Double)value).isNaN()) return null;
+			return value;
+		}
+		Object[] key = new Object[values.length];
+		for(int j=0; j<values.length; j++) {
+			key[j] = this.normalize(j, values[j]);
+			if(key[j] instanceof Double && ((Double)key[j]).isNaN()) return null;
+		}
+		return Arrays.asList(key);
+	}
+	protected Object key(long id) {
+		Object[] values = new Object[this.columns.size()];
+		for(int j=0; j<values.length; j++) {
+			ColumnStorage storage = this.columns.get(j).getData().getStorage();
+			if(storage instanceof ColumnStorageString) { // Code is taken directly from the storage
+				int code = ((ColumnStorageString)storage).getCode(id);
+				Object value = code == ColumnStorageString.NULL ? null : ((ColumnStorageString)storage).getDictionary().decode(code);
+				values[j] = value instanceof String ? (Object)code : normalize(value);
+			}
+			else {
+				values[j] = normalize(this.columns.get(j).getData().getValue(id));
+			}
+		}
+		if(values.length == 1) {
+			if(values[0] instanceof Double && ((Double)values[0]).isNaN()) return null;
+			return values[0];
+		}
+		for(int j=0; j<values.length; j++) {
+			if(values[j] instanceof Double && ((Double)values[j]).isNaN()) return null;
+		}
+		return Arrays.asList(values);
+	}
+
+	// Values are in the order of the index columns
+	public long find(Object[] values) {
+		Object key = this.key(values);
+		if(key == null) return -1;
+		Long id = this.ids.get(key);
+		return id == null ? -1 : id;
+	}
+
+	public void add(long id) {
+		Object key = this.key(id);
+		if(key == null) return;
+		if(this.ids.putIfAbsent(key, id) != null) {
+			this.duplicates.computeIfAbsent(key, k -> new ArrayDeque<Long>()).addLast(id);
+		}
+	}
+
+	public void remove(long id) {
+		Object key = this.key(id);
+		if(key == null) return;
+		Long existing = this.ids.get(key);
+		if(existing == null) return;
+		ArrayDeque<Long> later = this.duplicates.get(key);
+
+		if(existing != id) { // Not indexed record (duplicate)
+			if(later != null && later.remove(id) && later.isEmpty()) this.duplicates.remove(key);
+			return;
+		}
+
+		// The next record with the same key (if any) is indexed now
+		if(later == null) {
+			this.ids.remove(key);
+		}
+		else {
+			this.ids.put(key, later.pollFirst());
+			if(later.isEmpty()) this.duplicates.remove(key);
+		}
+	}
+
+	public void build() {
+		this.ids.clear();
+		this.duplicates.clear();
+		Range range = this.table.getIdRange();
+		for(long i=range.start; i<range.end; i++) {
+			this.add(i);
+		}
+		this.isStale = false;
+	}
+
+	public TableIndex(Table table, List<Column> columns) {
+		this.table = table;
+		this.columns = new ArrayList<Column>(columns);
+	}
+}
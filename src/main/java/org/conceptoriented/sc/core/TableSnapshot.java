@@ -0,0 +1,86 @@
+package org.conceptoriented.sc.core;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Read-only view of the data of a table as part of a schema snapshot.
+ */
+public class TableSnapshot {
+
+	private final String name;
+	public String getName() {
+		return this.name;
+	}
+
+	private final Range idRange;
+	public Range getIdRange() {
+		return new Range(this.idRange);
+	}
+	public long getLength() {
+		return this.idRange.getLength();
+	}
+
+	private final Map<String, ColumnStorage> columns = new LinkedHashMap<String, ColumnStorage>();
+	private final Map<String, ColumnStorage> columnNames = new TreeMap<String, ColumnStorage>(String.CASE_INSENSITIVE_ORDER); // Case-insensitive lookup like in the schema
+	public List<String> getColumnNames() {
+		return new ArrayList<String>(this.columns.keySet());
+	}
+
+	public Object getValue(String column, long id) {
+		return this.getStorage(column, id).getValue(id);
+	}
+	public double getDouble(String column, long id) {
+		return this.getStorage(column, id).getDouble(id);
+	}
+
+	protected ColumnStorage getStorage(String column, long id) {
+		ColumnStorage storage = this.columnNames.get(column);
+		if(storage == null) {
+			throw new IllegalArgumentException("Column not found: " + column);
+		}
+		if(id < this.idRange.start || id >= this.idRange.end) {
+			throw new IndexOutOfBoundsException("Id " + id + " is not in the snapshot of table " + this.name);
+		}
+		return storage;
+	}
+
+	public List<Record> read(Range range) {
+		if(range == null) {
+			range = this.idRange;
+		}
+
+		// Only records which exist in the snapshot
+		long start = Long.max(range.start, this.idRange.start);
+		long end = Long.min(range.end, this.idRange.end);
+
+		List<Record> records = new ArrayList<Record>();
+		for(long row = start; row < end; row++) {
+
+			Record record = new Record();
+			record.set("_id", row);
+
+			for(Map.Entry<String, ColumnStorage> entry : this.columns.entrySet()) {
+				record.set(entry.getKey(), entry.getValue().getValue(row));
+			}
+
+			records.add(record);
+		}
+
+		return records;
+	}
+
+	protected TableSnapshot(Table table) {
+		this.name = table.getName();
+		this.idRange = new Range(table.getIdRange());
+
+		for(Column column : table.getSchema().getColumns(table.getName())) {
+			ColumnStorage storage = column.getData().getStorage().snapshot();
+			this.columns.put(column.getName(), storage);
+			this.columnNames.putIfAbsent(column.getName(), storage);
+		}
+	}
+}
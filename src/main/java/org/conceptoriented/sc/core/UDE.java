@@ -1,14 +1,38 @@
 package org.conceptoriented.sc.core;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.math.BigDecimal;
+import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
 
 /**
  * User defined expression. It knows how to computing one output value given several input values.
@@ -154,7 +178,7 @@ class UdeJava implements UDE {
 		}
 		if(this.translateError != null) return;
 	}
-	private DcError translateError;
+	protected DcError translateError;
 	@Override
 	public List<DcError> getTranslateErrors() { // Find first error or null for no errors. Is meaningful only after translation.
 		List<DcError> ret = new ArrayList<DcError>();
@@ -231,7 +255,7 @@ class UdeJava implements UDE {
 
 		return ret;
 	}
-	private DcError evaluateError;
+	protected DcError evaluateError;
 	@Override
 	public DcError getEvaluateError() { // Find first error or null for no errors. Is meaningful only after evaluation
 		if(this.evaluateError == null || this.evaluateError.code == DcErrorCode.NONE) {
@@ -476,7 +500,7 @@ class UdeJava implements UDE {
 	}
 
 	// Replace all occurrences of column paths in the formula by variable names from the symbol table
-	private String transformFormula() {
+	protected String transformFormula() {
 		StringBuffer buf = new StringBuffer(this.formula);
 
 		// Input parameters
@@ -497,6 +521,11 @@ class UdeJava implements UDE {
 		return buf.toString();
 	}
 
+	// New instance with the same formula which can be used independently (e.g., in another thread)
+	protected UdeJava copy() {
+		return new UdeJava(this.formula, this.table);
+	}
+
 	public UdeJava() {
 	}
 	public UdeJava(String formula, Table table) {
@@ -507,6 +536,117 @@ class UdeJava implements UDE {
 	}
 }
 
+/**
+ * Formula is compiled into a Java class with static methods working on primitive doubles.
+ * The syntax is the same as for exp4j formulas (arithmetic operators, power, common functions and constants).
+ * Compiled classes are cached (least recently used ones are evicted) and shared by all formulas with the same transformed (parameter-independent) source.
+ * 
+ * Differences from exp4j: division by zero returns infinity or NaN instead of an error.
+ * If no Java compiler is available at run time then the formula is interpreted by exp4j.
+ */
+class UdeCompiled extends UdeJava implements UDEBatch {
+
+	// Handles of the static methods of the compiled class: double evaluate(double[]) and void evaluateBatch(double[][], double[], int, int)
+	protected MethodHandle rowHandle;
+	protected MethodHandle batchHandle;
+
+	protected double[] rowValues; // Parameters passed to the row method (the last element is out if used)
+
+	@Override
+	public void build() {
+		this.rowHandle = null;
+		this.batchHandle = null;
+
+		if(this.isEquality) return; // Evaluated without native expression
+
+		if(!FormulaCompiler.isAvailable()) { // Interpret
+			super.build();
+			return;
+		}
+
+		int paramCount = this.exprDependencies.size();
+		boolean hasOut = this.outDependency != null;
+
+		String javaExpr;
+		try {
+			javaExpr = new FormulaCompiler(this.transformFormula()).toJava();
+		}
+		catch(IllegalArgumentException e) {
+			this.translateError = new DcError(DcErrorCode.PARSE_ERROR, "Expression error.", e.getMessage());
+			return;
+		}
+
+		MethodHandle[] handles;
+		try {
+			handles = FormulaCompiler.compile(javaExpr, paramCount, hasOut);
+		}
+		catch(IllegalArgumentException e) {
+			this.translateError = new DcError(DcErrorCode.BUILD_ERROR, "Build error", "Cannot compile the formula. " + e.getMessage());
+			return;
+		}
+		if(handles == null) {
+			this.translateError = new DcError(DcErrorCode.BUILD_ERROR, "Build error", "Cannot compile the formula.");
+			return;
+		}
+		this.rowHandle = handles[0];
+		this.batchHandle = handles[1];
+
+		this.rowValues = new double[paramCount + (hasOut ? 1 : 0)];
+	}
+
+	@Override
+	public Object evaluate(Object[] params, Object out) {
+		if(this.rowHandle == null) return super.evaluate(params, out); // Equality or interpreted
+		this.evaluateError = null;
+
+		try {
+			for(int i = 0; i < this.exprDependencies.size(); i++) {
+				this.rowValues[i] = params[i] == null ? Double.NaN : ((Number)params[i]).doubleValue();
+			}
+			if(this.outDependency != null) {
+				this.rowValues[this.rowValues.length - 1] = out == null ? Double.NaN : ((Number)out).doubleValue();
+			}
+			return (double) this.rowHandle.invokeExact(this.rowValues);
+		}
+		catch(Throwable e) {
+			this.evaluateError = new DcError(DcErrorCode.EVALUATE_ERROR, "Evaluate error", "Error evaluating expression. " + e.getMessage());
+			return null;
+		}
+	}
+
+	@Override
+	public void evaluateBatch(double[][] params, double[] out, int from, int to) {
+		this.evaluateError = null;
+
+		if(this.batchHandle == null) { // Equality or interpreted
+			Object[] rowParams = new Object[params.length];
+			for(int i = from; i < to; i++) {
+				for(int p = 0; p < params.length; p++) rowParams[p] = params[p][i];
+				Object ret = this.evaluate(rowParams, out[i]);
+				if(this.evaluateError != null) return;
+				out[i] = ret instanceof Number ? ((Number)ret).doubleValue() : Double.NaN;
+			}
+			return;
+		}
+
+		try {
+			this.batchHandle.invokeExact(params, out, from, to);
+		}
+		catch(Throwable e) {
+			this.evaluateError = new DcError(DcErrorCode.EVALUATE_ERROR, "Evaluate error", "Error evaluating expression. " + e.getMessage());
+		}
+	}
+
+	@Override
+	protected UdeJava copy() {
+		return new UdeCompiled(this.formula, this.table);
+	}
+
+	public UdeCompiled(String formula, Table table) {
+		super(formula, table);
+	}
+}
+
 class ExprDependency {
 	public int start;
 	public int end;
@@ -516,3 +656,276 @@ class ExprDependency {
 	List<Column> columns; // Resolved param paths
 }
 
+/**
+ * Translation of (transformed) formulas into Java source code and compilation of this code.
+ * Formulas have to use parameter names produced by the formula transformation.
+ */
+class FormulaCompiler {
+
+	//
+	// Translation into Java expression (recursive descent parser)
+	//
+
+	private final String formula;
+	private int pos;
+
+	public String toJava() {
+		this.pos = 0;
+		String ret = this.parseAdd();
+		this.skipSpaces();
+		if(this.pos < this.formula.length()) {
+			throw new IllegalArgumentException("Unexpected symbol at position " + this.pos + ": " + this.formula.charAt(this.pos));
+		}
+		return ret;
+	}
+
+	private String parseAdd() {
+		String ret = this.parseMul();
+		for(char c = this.peek(); c == '+' || c == '-'; c = this.peek()) {
+			this.pos++;
+			ret = "(" + ret + " " + c + " " + this.parseMul() + ")";
+		}
+		return ret;
+	}
+
+	private String parseMul() {
+		String ret = this.parseUnary();
+		for(char c = this.peek(); c == '*' || c == '/' || c == '%'; c = this.peek()) {
+			this.pos++;
+			ret = "(" + ret + " " + c + " " + this.parseUnary() + ")";
+		}
+		return ret;
+	}
+
+	private String parseUnary() { // Power has higher precedence than unary minus
+		char c = this.peek();
+		if(c == '-') {
+			this.pos++;
+			return "(-" + this.parseUnary() + ")";
+		}
+		if(c == '+') {
+			this.pos++;
+			return this.parseUnary();
+		}
+		return this.parsePow();
+	}
+
+	private String parsePow() { // Right associative
+		String ret = this.parseAtom();
+		if(this.peek() == '^') {
+			this.pos++;
+			ret = "Math.pow(" + ret + ", " + this.parseUnary() + ")";
+		}
+		return ret;
+	}
+
+	private String parseAtom() {
+		char c = this.peek();
+
+		if(c == '(') {
+			this.pos++;
+			String ret = this.parseAdd();
+			this.expect(')');
+			return "(" + ret + ")";
+		}
+
+		if(Character.isDigit(c) || c == '.') {
+			int start = this.pos;
+			while(this.pos < this.formula.length() && (Character.isDigit(this.formula.charAt(this.pos)) || this.formula.charAt(this.pos) == '.')) this.pos++;
+			if(this.pos < this.formula.length() && (this.formula.charAt(this.pos) == 'e' || this.formula.charAt(this.pos) == 'E')) { // Exponent
+				int mark = this.pos++;
+				if(this.pos < this.formula.length() && (this.formula.charAt(this.pos) == '+' || this.formula.charAt(this.pos) == '-')) this.pos++;
+				if(this.pos < this.formula.length() && Character.isDigit(this.formula.charAt(this.pos))) {
+					while(this.pos < this.formula.length() && Character.isDigit(this.formula.charAt(this.pos))) this.pos++;
+				}
+				else {
+					this.pos = mark; // Not an exponent
+				}
+			}
+			try {
+				return "(" + Double.toString(Double.parseDouble(this.formula.substring(start, this.pos))) + ")"; // Always double literals
+			}
+			catch(NumberFormatException e) {
+				throw new IllegalArgumentException("Wrong number: " + this.formula.substring(start, this.pos));
+			}
+		}
+
+		if(Character.isLetter(c) || c == '_') {
+			int start = this.pos;
+			while(this.pos < this.formula.length() && (Character.isLetterOrDigit(this.formula.charAt(this.pos)) || this.formula.charAt(this.pos) == '_')) this.pos++;
+			String name = this.formula.substring(start, this.pos);
+
+			if(this.peek() == '(') { // Function call
+				this.pos++;
+				List<String> args = new ArrayList<String>();
+				if(this.peek() != ')') {
+					args.add(this.parseAdd());
+					while(this.peek() == ',') {
+						this.pos++;
+						args.add(this.parseAdd());
+					}
+				}
+				this.expect(')');
+				return FormulaCompiler.function(name, args);
+			}
+
+			if(name.startsWith("__p__")) return name; // Parameter
+			if(name.equals("pi") || name.equals("\u03C0")) return "Math.PI";
+			if(name.equals("e")) return "Math.E";
+			if(name.equals("\u03C6")) return "1.61803398874";
+
+			throw new IllegalArgumentException("Unknown variable: " + name);
+		}
+
+		throw new IllegalArgumentException(this.pos < this.formula.length() ? "Unexpected symbol at position " + this.pos + ": " + c : "Unexpected end of formula.");
+	}
+
+	private static String function(String name, List<String> args) {
+		String arg = args.size() > 0 ? args.get(0) : null;
+		if(args.size() == 1) {
+			switch(name) {
+			case "abs": case "acos": case "asin": case "atan": case "cbrt": case "ceil": case "cos": case "cosh": case "exp": case "expm1": case "floor": case "log": case "log10": case "log1p": case "signum": case "sin": case "sinh": case "sqrt": case "tan": case "tanh":
+				return "Math." + name + "(" + arg + ")";
+			case "log2":
+				return "(Math.log(" + arg + ") / Math.log(2.0))";
+			case "cot":
+				return "(1.0 / Math.tan(" + arg + "))";
+			case "sec":
+				return "(1.0 / Math.cos(" + arg + "))";
+			case "csc":
+				return "(1.0 / Math.sin(" + arg + "))";
+			}
+		}
+		else if(args.size() == 2 && name.equals("pow")) {
+			return "Math.pow(" + args.get(0) + ", " + args.get(1) + ")";
+		}
+		throw new IllegalArgumentException("Unknown function: " + name + " with " + args.size() + " arguments");
+	}
+
+	private void skipSpaces() {
+		while(this.pos < this.formula.length() && Character.isWhitespace(this.formula.charAt(this.pos))) this.pos++;
+	}
+	private char peek() {
+		this.skipSpaces();
+		return this.pos < this.formula.length() ? this.formula.charAt(this.pos) : 0;
+	}
+	private void expect(char c) {
+		if(this.peek() != c) throw new IllegalArgumentException("Expected: " + c);
+		this.pos++;
+	}
+
+	public FormulaCompiler(String formula) {
+		this.formula = formula;
+	}
+
+	//
+	// Compilation (classes are cached by their source code)
+	//
+
+	// Least recently used classes are evicted so that classes (and their loaders) of edited formulas can be unloaded. Evicted classes are still used by the formulas which have been built with them.
+	static final int CACHE_SIZE = 256;
+	private static final Map<String, MethodHandle[]> cache = Collections.synchronizedMap(new LinkedHashMap<String, MethodHandle[]>(16, 0.75f, true) {
+		@Override protected boolean removeEldestEntry(Map.Entry<String, MethodHandle[]> eldest) {
+			return this.size() > CACHE_SIZE;
+		}
+	});
+	private static final AtomicLong classCount = new AtomicLong();
+
+	public static boolean isAvailable() {
+		return ToolProvider.getSystemJavaCompiler() != null;
+	}
+
+	// Return handles of the row and batch methods or null if the code cannot be loaded. Compilation errors are thrown as IllegalArgumentException
+	public static MethodHandle[] compile(String javaExpr, int paramCount, boolean hasOut) {
+		String key = paramCount + (hasOut ? "+out:" : ":") + javaExpr;
+		MethodHandle[] ret = cache.get(key);
+		if(ret != null) return ret;
+
+		String className = "ScFormula" + classCount.incrementAndGet();
+		String source = FormulaCompiler.generateSource(className, javaExpr, paramCount, hasOut);
+
+		try {
+			Class<?> cls = FormulaCompiler.compileClass(className, source);
+			if(cls == null) return null;
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			ret = new MethodHandle[] {
+				lookup.findStatic(cls, "evaluate", MethodType.methodType(double.class, double[].class)),
+				lookup.findStatic(cls, "evaluateBatch", MethodType.methodType(void.class, double[][].class, double[].class, int.class, int.class))
+			};
+		}
+		catch(ReflectiveOperationException | IOException e) {
+			return null;
+		}
+
+		MethodHandle[] existing = cache.putIfAbsent(key, ret);
+		return existing != null ? existing : ret;
+	}
+
+	private static String generateSource(String className, String javaExpr, int paramCount, boolean hasOut) {
+		StringBuilder row = new StringBuilder();
+		StringBuilder batch = new StringBuilder();
+		StringBuilder batchArrays = new StringBuilder();
+		for(int i = 0; i < paramCount; i++) {
+			row.append("double __p__" + i + " = p[" + i + "]; ");
+			batchArrays.append("double[] p" + i + " = p[" + i + "]; ");
+			batch.append("double __p__" + i + " = p" + i + "[i]; ");
+		}
+		if(hasOut) {
+			row.append("double __p__" + paramCount + " = p[" + paramCount + "]; ");
+			batch.append("double __p__" + paramCount + " = out[i]; ");
+		}
+
+		return "public final class " + className + " {\n"
+			+ "public static double evaluate(double[] p) { " + row + "return " + javaExpr + "; }\n"
+			+ "public static void evaluateBatch(double[][] p, double[] out, int from, int to) { " + batchArrays
+			+ "for(int i = from; i < to; i++) { " + batch + "out[i] = " + javaExpr + "; } }\n"
+			+ "}\n";
+	}
+
+	private static Class<?> compileClass(String className, String source) throws ClassNotFoundException, IOException {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if(compiler == null) return null;
+
+		Map<String, ByteArrayOutputStream> classes = new HashMap<String, ByteArrayOutputStream>();
+
+		JavaFileObject sourceFile = new SimpleJavaFileObject(URI.create("string:///" + className + ".java"), JavaFileObject.Kind.SOURCE) {
+			@Override public CharSequence getCharContent(boolean ignoreEncodingErrors) { return source; }
+		};
+
+		// Diagnostics are collected (instead of being printed to System.err) and returned as an error message
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+
+		try(StandardJavaFileManager standardManager = compiler.getStandardFileManager(diagnostics, null, null)) {
+			JavaFileManager fileManager = new ForwardingJavaFileManager<StandardJavaFileManager>(standardManager) {
+				@Override public JavaFileObject getJavaFileForOutput(Location location, String name, JavaFileObject.Kind kind, FileObject sibling) {
+					return new SimpleJavaFileObject(URI.create("mem:///" + name + kind.extension), kind) {
+						@Override public OutputStream openOutputStream() {
+							ByteArrayOutputStream out = new ByteArrayOutputStream();
+							classes.put(name, out);
+							return out;
+						}
+					};
+				}
+			};
+
+			Boolean success = compiler.getTask(null, fileManager, diagnostics, Arrays.asList("-nowarn"), null, Arrays.asList(sourceFile)).call();
+			if(success == null || !success) {
+				String message = diagnostics.getDiagnostics().stream()
+					.filter(d -> d.getKind() == Diagnostic.Kind.ERROR)
+					.map(d -> d.getMessage(Locale.ROOT))
+					.collect(Collectors.joining("; "));
+				throw new IllegalArgumentException(message);
+			}
+			if(!classes.containsKey(className)) return null;
+		}
+
+		byte[] bytes = classes.get(className).toByteArray();
+		ClassLoader loader = new ClassLoader(FormulaCompiler.class.getClassLoader()) {
+			@Override protected Class<?> findClass(String name) throws ClassNotFoundException {
+				if(!name.equals(className)) throw new ClassNotFoundException(name);
+				return this.defineClass(name, bytes, 0, bytes.length);
+			}
+		};
+		return loader.loadClass(className);
+	}
+}
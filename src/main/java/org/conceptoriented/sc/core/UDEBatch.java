@@ -0,0 +1,20 @@
+package org.conceptoriented.sc.core;
+
+/**
+ * User defined expression which is able to compute many outputs in one call.
+ * It is an optional extension of the row-by-row contract. If an expression implements it and the output column is numeric then the column evaluate procedure passes slices of the whole columns instead of single values.
+ *
+ * All values are primitive doubles and null values are passed as NaN.
+ * Parameter values are in the same order as the resolved parameter paths.
+ *
+ * Evaluate errors are reported via the same method as for the row-by-row evaluation. If an error is returned then the evaluation of the column stops.
+ */
+public interface UDEBatch extends UDE {
+
+	/**
+	 * Compute output values for the elements from (inclusive) to (exclusive) of the arrays.
+	 * The element params[p][i] is the value of parameter p for row i.
+	 * The element out[i] stores the current output value (or NaN) and it has to be overwritten by the new output value.
+	 */
+	public void evaluateBatch(double[][] params, double[] out, int from, int to);
+}
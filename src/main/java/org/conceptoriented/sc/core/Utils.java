@@ -231,24 +231,25 @@ public class Utils {
 			}
 
             // Determine type
-    		String typeName;
-
-    		if ( Utils.isInt32( values.toArray(new String[values.size()]) ) ) {
-    			//typeName = "Integer";
-    			typeName = "Double";
-    		}
-            else if ( Utils.isDouble( values.toArray(new String[values.size()]) ) ) {
-            	typeName = "Double";
-            }
-            else {
-            	typeName = "String";
-            }
-
-            types.add(typeName);
+            types.add(Utils.recommendType(values.toArray(new String[values.size()])));
 		}
 		
 		return types;
 	}
+
+	// Type of a column with the specified sample values
+	public static String recommendType(String[] values) {
+		if ( Utils.isInt32(values) ) {
+			//return "Integer";
+			return "Double";
+		}
+		else if ( Utils.isDouble(values) ) {
+			return "Double";
+		}
+		else {
+			return "String";
+		}
+	}
 	
 	public static List<String> csvLineToList(String line, JSONObject paramsObj) {
 		List<String> ret = new ArrayList<String>();
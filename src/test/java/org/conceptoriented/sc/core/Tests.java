@@ -3,6 +3,8 @@ package org.conceptoriented.sc.core;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
 import java.math.BigDecimal;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -10,6 +12,11 @@ import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
 import org.apache.commons.lang3.tuple.Pair;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -75,6 +82,55 @@ public class Tests {
 
 
 
+    @Test
+    public void schemaLookupTest()
+    {
+        schema = new Schema("My Schema");
+        Table table = schema.createTable("T");
+        Table table2 = schema.createTable("T2");
+        Column columnA = schema.createColumn("T", "A", "Double");
+        Column columnB = schema.createColumn("T", "B", "String");
+
+        // Names are case-insensitive
+        assertEquals(table, schema.getTable("t"));
+        assertEquals(columnA, schema.getColumn("t", "a"));
+        assertEquals(columnB, schema.getColumnById(columnB.getId().toString()));
+        assertEquals(2, schema.getColumns("T").size());
+
+        // Rename
+        table.setName("Facts");
+        columnA.setName("Amount");
+        assertNull(schema.getTable("T"));
+        assertEquals(table, schema.getTable("FACTS"));
+        assertNull(schema.getColumn("Facts", "A"));
+        assertEquals(columnA, schema.getColumn("Facts", "amount"));
+
+        // Move to another table
+        columnB.setInput(table2);
+        assertEquals(1, schema.getColumns("Facts").size());
+        assertEquals(columnB, schema.getColumn("T2", "B"));
+
+        // Delete
+        schema.deleteColumn(columnA.getId().toString());
+        assertNull(schema.getColumn("Facts", "Amount"));
+        assertNull(schema.getColumnById(columnA.getId().toString()));
+        schema.deleteTable(table2.getId().toString());
+        assertNull(schema.getTable("T2"));
+        assertNull(schema.getColumnById(columnB.getId().toString()));
+
+        // Lookup does not depend on the default locale (dotless i in Turkish)
+        Locale locale = Locale.getDefault();
+        try {
+        	Locale.setDefault(new Locale("tr", "TR"));
+        	Column columnId = schema.createColumn("Facts", "ID", "Double");
+        	assertEquals(columnId, schema.getColumn("facts", "id"));
+        	assertEquals(table, schema.getTable("FACTS"));
+        }
+        finally {
+        	Locale.setDefault(locale);
+        }
+    }
+
     @Test
     public void evalexTest()
     {
@@ -136,6 +192,174 @@ public class Tests {
         assertEquals(13.0, (Double)columnB.getData().getValue(2), 0.00001);
     }
 
+    @Test
+    public void calcCompiledTest()
+    {
+    	Schema schema = createCalcSchema();
+        Column columnA = schema.getColumn("T", "A");
+        Column columnB = schema.getColumn("T", "B");
+
+        columnB.setDefinitionCalc(new ColumnDefinitionCalc("2 * [A] + 1", ExpressionKind.COMPILED));
+        columnB.translate();
+        assertTrue( columnB.getDependencies().contains(columnA) );
+        assertNotNull( ((UdeCompiled)columnB.evaluatorCalc.ude).rowHandle ); // Compiled (not interpreted)
+        columnB.evaluate();
+
+        assertEquals(11.0, (Double)columnB.getData().getValue(0), 0.00001);
+        assertEquals(Double.NaN, columnB.getData().getValue(1));
+        assertEquals(13.0, (Double)columnB.getData().getValue(2), 0.00001);
+
+        // Same results as interpreted formulas
+        String formula = "-[A]^2 + sqrt(4) * (10 % 3) / 2 + abs(-[A]) - 3e-1";
+        columnB.setDefinitionCalc(new ColumnDefinitionCalc(formula, ExpressionKind.EXP4J));
+        columnB.translate();
+        columnB.evaluate();
+        double expected = columnB.getData().getDouble(2);
+
+        columnB.setDefinitionCalc(new ColumnDefinitionCalc(formula, ExpressionKind.COMPILED));
+        columnB.translate();
+        columnB.evaluate();
+        assertEquals(expected, columnB.getData().getDouble(2), 0.00001);
+
+        // Syntax errors are translation errors
+        columnB.setDefinitionCalc(new ColumnDefinitionCalc("2 * [A] +", ExpressionKind.COMPILED));
+        columnB.translate();
+        assertTrue(columnB.hasTranslateErrors());
+    }
+
+    @Test
+    public void calcIncrementalTest()
+    {
+    	Schema schema = createCalcSchema();
+        Table table = schema.getTable("T");
+        Column columnA = schema.getColumn("T", "A");
+        Column columnB = schema.getColumn("T", "B");
+
+        columnB.setDefinitionCalc(new ColumnDefinitionCalc("2 * [A] + 1", ExpressionKind.EXP4J));
+        schema.translate();
+        assertFalse(columnB.isIncremental()); // Never evaluated
+        schema.evaluate();
+        assertTrue(columnB.isIncremental());
+
+        // Marker which will be overwritten only by full evaluation
+        columnB.getData().setValue(0, 0.0);
+
+        // Only new records are evaluated
+        Record record = new Record();
+        record.set("A", 7.0);
+        table.append(record);
+        schema.evaluate();
+        assertEquals(0.0, (Double)columnB.getData().getValue(0), 0.00001);
+        assertEquals(15.0, (Double)columnB.getData().getValue(3), 0.00001);
+
+        // Change of existing dependency values triggers full evaluation
+        columnA.getData().setValue(2, 8.0);
+        assertFalse(columnB.isIncremental());
+        schema.evaluate();
+        assertEquals(11.0, (Double)columnB.getData().getValue(0), 0.00001);
+        assertEquals(17.0, (Double)columnB.getData().getValue(2), 0.00001);
+    }
+
+    @Test
+    public void parallelTest()
+    {
+    	Schema schema = createCalcSchema();
+        schema.setExecutor(new ForkJoinPool(4));
+
+        Column columnB = schema.getColumn("T", "B");
+        columnB.setDefinitionCalc(new ColumnDefinitionCalc("2 * [A] + 1", ExpressionKind.EXP4J));
+
+        // Many independent columns in one layer and one dependent column in the next layer
+        for(int i=0; i<8; i++) {
+            Column column = schema.createColumn("T", "C" + i, "Double");
+            column.setKind(DcColumnKind.CALC);
+            column.setDefinitionCalc(new ColumnDefinitionCalc("[A] + " + i, ExpressionKind.EXP4J));
+        }
+        Column columnD = schema.createColumn("T", "D", "Double");
+        columnD.setKind(DcColumnKind.CALC);
+        columnD.setDefinitionCalc(new ColumnDefinitionCalc("[B] + [C7]", ExpressionKind.EXP4J));
+
+        schema.translate();
+        schema.evaluate();
+
+        assertEquals(11.0, (Double)columnB.getData().getValue(0), 0.00001);
+        assertEquals(9.0, (Double)schema.getColumn("T", "C4").getData().getValue(0), 0.00001);
+        assertEquals(23.0, (Double)columnD.getData().getValue(0), 0.00001);
+        assertEquals(26.0, (Double)columnD.getData().getValue(2), 0.00001);
+
+        schema.getExecutor().shutdown();
+    }
+
+    @Test
+    public void interruptedEvaluationTest() throws InterruptedException
+    {
+    	Schema schema = createCalcSchema();
+    	java.util.concurrent.ThreadPoolExecutor executor = new java.util.concurrent.ThreadPoolExecutor(1, 1, 0, java.util.concurrent.TimeUnit.SECONDS, new java.util.concurrent.LinkedBlockingQueue<Runnable>()) {
+    		@Override
+    		public <T> List<java.util.concurrent.Future<T>> invokeAll(java.util.Collection<? extends java.util.concurrent.Callable<T>> tasks) throws InterruptedException {
+    			throw new InterruptedException();
+    		}
+    	};
+        schema.setExecutor(executor);
+
+        schema.getColumn("T", "B").setDefinitionCalc(new ColumnDefinitionCalc("[A] + 1", ExpressionKind.EXP4J));
+        Column columnC = schema.createColumn("T", "C", "Double");
+        columnC.setKind(DcColumnKind.CALC);
+        columnC.setDefinitionCalc(new ColumnDefinitionCalc("[A] + 2", ExpressionKind.EXP4J));
+        Column columnD = schema.createColumn("T", "D", "Double");
+        columnD.setKind(DcColumnKind.CALC);
+        columnD.setDefinitionCalc(new ColumnDefinitionCalc("[B] + [C]", ExpressionKind.EXP4J));
+        schema.translate();
+        java.time.Instant evaluateTime = schema.getEvaluateTime();
+
+        // Evaluation is aborted (next layers and gc are not performed)
+        try {
+        	schema.evaluate();
+        	fail();
+        }
+        catch(java.util.concurrent.CancellationException e) {
+        	assertTrue(Thread.interrupted()); // Flag is restored (and cleared here)
+        }
+        assertNull(columnD.getData().getValue(0));
+        assertEquals(evaluateTime, schema.getEvaluateTime());
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void partitionedCalcTest()
+    {
+        schema = new Schema("My Schema");
+        schema.setExecutor(new ForkJoinPool(4));
+        Table table = schema.createTable("T");
+        Column columnA = schema.createColumn("T", "A", "Double");
+        Column columnB = schema.createColumn("T", "B", "Double");
+        columnB.setKind(DcColumnKind.CALC);
+        columnB.setDefinitionCalc(new ColumnDefinitionCalc("2 * [A] + 1", ExpressionKind.EXP4J));
+
+        long count = 3 * ColumnStorageBase.CHUNK_SIZE + 5;
+        Record record = new Record();
+        for(long i=0; i<count; i++) {
+            record.set("A", (double)i);
+            table.append(record);
+        }
+
+        schema.translate();
+        schema.evaluate();
+        assertFalse(columnB.hasEvaluateErrors());
+        assertEquals(1.0, columnB.getData().getDouble(0), 0.00001);
+        assertEquals(2.0 * ColumnStorageBase.CHUNK_SIZE + 1, columnB.getData().getDouble(ColumnStorageBase.CHUNK_SIZE), 0.00001);
+        assertEquals(2.0 * (count - 1) + 1, columnB.getData().getDouble(count - 1), 0.00001);
+
+        // Errors of partitions are collected
+        columnB.setDefinitionCalc(new ColumnDefinitionCalc("1 / ([A] - 40000)", ExpressionKind.EXP4J));
+        schema.translate();
+        schema.evaluate();
+        assertEquals(1, columnB.getEvaluateErrors().size());
+
+        schema.getExecutor().shutdown();
+    }
+
     @Test
     public void calcUdeTest() // Test custom class for calc column 
     {
@@ -178,6 +402,156 @@ public class Tests {
 
         return schema;
     }
+    @Test
+    public void doubleStorageTest()
+    {
+    	Schema schema = createCalcSchema();
+        Column columnA = schema.getColumn("T", "A");
+
+        // Numeric columns use primitive storage
+        assertTrue( columnA.getData().getStorage() instanceof ColumnStorageDouble );
+        assertTrue( schema.getColumn("T", "B").getData().getStorage() instanceof ColumnStorageDouble );
+
+        assertEquals(5.0, columnA.getData().getDouble(0), 0.00001);
+        assertEquals(6.0, columnA.getData().getValue(2)); // Integer is stored as double
+
+        // Null and NaN are distinguished
+        assertNull(columnA.getData().getValue(1));
+        assertTrue(Double.isNaN(columnA.getData().getDouble(1)));
+        columnA.getData().setDouble(1, Double.NaN);
+        assertEquals(Double.NaN, columnA.getData().getValue(1));
+
+        columnA.getData().setDouble(1, 7.5);
+        assertEquals(7.5, columnA.getData().getValue(1));
+    }
+    @Test
+    public void outputStorageTest() throws DcError
+    {
+        schema = new Schema("My Schema");
+        Table table = schema.createTable("T");
+        Table groups = schema.createTable("G");
+        Table string = schema.getTable("String");
+        Column column = schema.createColumn("T", "C", "String");
+        table.append(Record.fromJson("{ C: \"abc\" }"));
+        assertTrue( column.getData().getStorage() instanceof ColumnStorageString );
+
+        // String to link: storage stores ids (strings are not ids)
+        String json = "{ id: \"" + column.getId() + "\", input: { id: \"" + table.getId() + "\" }, output: { id: \"" + groups.getId() + "\" } }";
+        schema.updateColumnFromJson(json);
+        assertTrue( column.getData().getStorage() instanceof ColumnStorageLong );
+        assertNull(column.getData().getValue(0));
+        column.getData().setValue(0, 5L);
+        assertEquals(5L, column.getData().getValue(0));
+
+        // Link to string: storage stores strings again
+        json = "{ id: \"" + column.getId() + "\", input: { id: \"" + table.getId() + "\" }, output: { id: \"" + string.getId() + "\" } }";
+        schema.updateColumnFromJson(json);
+        assertTrue( column.getData().getStorage() instanceof ColumnStorageString );
+        column.getData().setValue(0, "xyz");
+        assertEquals("xyz", column.getData().getValue(0));
+    }
+    @Test
+    public void chunkedStorageTest()
+    {
+        schema = new Schema("My Schema");
+        Table table = schema.createTable("T");
+        Column columnA = schema.createColumn("T", "A", "Double");
+        Column columnS = schema.createColumn("T", "S", "String");
+
+        int count = 3 * ColumnStorageBase.CHUNK_SIZE + 10;
+        Record record = new Record();
+        for(int i=0; i<count; i++) {
+            record.set("A", (double)i);
+            record.set("S", "s" + i);
+            table.append(record);
+        }
+
+        assertEquals(count, table.getLength());
+        assertEquals(count - 1.0, columnA.getData().getDouble(count - 1), 0.00001);
+        assertEquals("s" + (count - 1), columnS.getData().getValue(count - 1));
+
+        // Delete first two chunks and a bit more
+        long del = 2 * ColumnStorageBase.CHUNK_SIZE + 5;
+        table.remove(new Range(0, del));
+        assertEquals(count - del, table.getLength());
+        table.gc(); // Deleted records are physically removed only after evaluation
+
+        ColumnStorageBase storage = (ColumnStorageBase)columnA.getData().getStorage();
+        assertEquals(2, storage.startChunk); // Whole leading chunks are freed
+        assertEquals((double)del, columnA.getData().getDouble(del), 0.00001);
+        assertEquals("s" + del, columnS.getData().getValue(del));
+    }
+    @Test
+    public void retentionTest()
+    {
+        schema = new Schema("My Schema");
+        Table table = schema.createTable("T");
+        Column columnA = schema.createColumn("T", "A", "Double");
+        table.setMaxLength(100);
+
+        Record record = new Record();
+        for(int i=0; i<1000; i++) {
+            record.set("A", (double)i);
+            table.append(record);
+        }
+
+        // Only the last records are in the window
+        assertEquals(new Range(900, 1000), table.getIdRange());
+        assertEquals(new Range(900, 1000), columnA.getData().getIdRange());
+        assertEquals(999.0, columnA.getData().getDouble(999), 0.00001);
+
+        // Deleted records are removed after evaluation
+        schema.evaluate();
+        assertEquals(0, table.getDelRange().getLength());
+
+        // Chunks are reused so the storage does not grow
+        for(int i=0; i<5 * ColumnStorageBase.CHUNK_SIZE; i++) {
+            record.set("A", (double)i);
+            table.append(record);
+            if(i % 1000 == 0) schema.evaluate();
+        }
+        ColumnStorageBase storage = (ColumnStorageBase)columnA.getData().getStorage();
+        assertTrue(storage.endChunk - storage.startChunk <= 2);
+        assertEquals(100, table.getLength());
+
+        // Max age. Zero age means that the records are deleted immediately
+        Table table2 = schema.createTable("T2");
+        schema.createColumn("T2", "A", "Double");
+        table2.setMaxAge(0);
+        table2.append(record);
+        assertEquals(0, table2.getLength());
+    }
+    @Test
+    public void calcBatchUdeTest() // Test custom class which evaluates many rows in one call
+    {
+    	Schema schema = createCalcSchema();
+        Column columnA = schema.getColumn("T", "A");
+        Column columnB = schema.getColumn("T", "B");
+
+        List<List<Column>> inputPaths = Arrays.asList( Arrays.asList(columnA) );
+        CustomBatchUde ude = new CustomBatchUde(inputPaths);
+        columnB.setEvaluatorCalc(new ColumnEvaluatorCalc(columnB, ude));
+
+        columnB.translate();
+        columnB.evaluate();
+
+        assertEquals(1, ude.batchCount); // All rows in one call
+        assertEquals(11.0, columnB.getData().getDouble(0), 0.00001);
+        assertTrue(Double.isNaN(columnB.getData().getDouble(1)));
+        assertEquals(13.0, columnB.getData().getDouble(2), 0.00001);
+    }
+    class CustomBatchUde extends CustomCalcUde implements UDEBatch {
+    	int batchCount = 0;
+    	@Override public void evaluateBatch(double[][] params, double[] out, int from, int to) {
+    		batchCount++;
+    		for(int i=from; i<to; i++) {
+    			out[i] = 2.0 * params[0][i] + 1.0; // "2 * [A] + 1"
+    		}
+    	}
+    	public CustomBatchUde(List<List<Column>> inputPaths) {
+    		super(inputPaths);
+    	}
+    }
     class CustomCalcUde implements UDE {
     	
     	@Override public void setParamPaths(List<QName> paths) {}
@@ -256,6 +630,39 @@ public class Tests {
         assertEquals(0L, c5.getData().getValue(0));
         assertEquals(1L, c5.getData().getValue(1));
     }
+    @Test
+    public void indexTest()
+    {
+    	Schema schema = createLinkSchema();
+        Table t1 = schema.getTable("T");
+
+        t1.createIndex(Arrays.asList("A", "B"));
+        t1.append(Record.fromJson("{ A: 10.0, B: \"ccc\" }"));
+        t1.append(Record.fromJson("{ A: 10, B: \"ccc\" }")); // Duplicate
+
+        // Numbers are compared as doubles and the order of fields is not important
+        assertEquals(1L, t1.find(Record.fromJson("{ B: \"ccc\", A: 10 }"), false));
+        assertEquals(-1L, t1.find(Record.fromJson("{ A: 10.0, B: \"bbb\" }"), false));
+
+        // The next duplicate is found after the first one is removed
+        t1.remove(2);
+        assertEquals(2L, t1.find(Record.fromJson("{ A: 10.0, B: \"ccc\" }"), false));
+
+        // Index is re-built after direct changes of values
+        schema.getColumn("T", "B").getData().setValue(2, "ddd");
+        assertEquals(2L, t1.find(Record.fromJson("{ A: 10.0, B: \"ddd\" }"), false));
+        assertEquals(-1L, t1.find(Record.fromJson("{ A: 10.0, B: \"ccc\" }"), false));
+
+        // Duplicates are promoted in the order of appending when the oldest records are removed
+        t1.append(Record.fromJson("{ A: 10.0, B: \"ddd\" }"));
+        t1.append(Record.fromJson("{ A: 10.0, B: \"ddd\" }"));
+        t1.remove(1);
+        assertEquals(3L, t1.find(Record.fromJson("{ A: 10.0, B: \"ddd\" }"), false));
+        t1.remove(1);
+        assertEquals(4L, t1.find(Record.fromJson("{ A: 10.0, B: \"ddd\" }"), false));
+        t1.remove(1);
+        assertEquals(-1L, t1.find(Record.fromJson("{ A: 10.0, B: \"ddd\" }"), false));
+    }
     Schema createLinkSchema() {
     	// Create and configure: schema, tables, columns
         schema = new Schema("My Schema");
@@ -359,6 +766,131 @@ public class Tests {
         assertEquals(20.0, ta.getData().getValue(1));
         assertEquals(0.0, ta.getData().getValue(2));
     }
+    @Test
+    public void linkDeleteTest()
+    {
+        schema = this.createAccuSchema();
+        Table t1 = schema.getTable("T");
+        schema.getColumn("T", "A").setKind(DcColumnKind.USER);
+
+        Column t2g = schema.getColumn("T2", "G");
+        t2g.setDefinitionLink(new ColumnDefinitionLink(" { [Id] = [Id] } ", ExpressionKind.EXP4J));
+        schema.translate();
+        schema.evaluate();
+        assertEquals(0L, t2g.getData().getValue(0));
+        assertEquals(3L, t2g.getData().getValue(3));
+
+        // Existing links to deleted records are re-linked (the target is appended again)
+        t1.remove(1);
+        schema.evaluate();
+        assertEquals(4L, t2g.getData().getValue(0));
+        assertEquals(4L, t2g.getData().getValue(1));
+        assertEquals(1L, t2g.getData().getValue(2));
+        assertEquals(5.0, schema.getColumn("T", "Id").getData().getValue(4));
+    }
+    @Test
+    public void accuDeltaTest()
+    {
+        schema = this.createAccuSchema();
+        Table t2 = schema.getTable("T2");
+
+        Column t2g = schema.getColumn("T2", "G");
+        t2g.setDefinitionLink(new ColumnDefinitionLink(" { [Id] = [Id] } ", ExpressionKind.EXP4J));
+        
+        // Accu formula with retraction formula
+        Column ta = schema.getColumn("T", "A");
+        ta.setDefinitionAccu(new ColumnDefinitionAccu("", " [out] + 2.0 * [Id] ", null, " [out] - 2.0 * [Id] ", "T2", "[G]", ExpressionKind.EXP4J));
+
+        schema.translate();
+        schema.evaluate();
+        assertEquals(20.0, ta.getData().getValue(0));
+        assertEquals(40.0, ta.getData().getValue(3));
+
+        // Marker which will be overwritten only by full evaluation
+        ta.getData().setValue(2, 100.0);
+
+        // New facts are added to existing groups and new groups are initialized
+        t2.append(Record.fromJson("{ Id: 10.0 }"));
+        t2.append(Record.fromJson("{ Id: 25.0 }"));
+        schema.evaluate();
+        assertEquals(40.0, ta.getData().getValue(1));
+        assertEquals(100.0, ta.getData().getValue(2));
+        assertEquals(50.0, ta.getData().getValue(4));
+
+        // Deleted facts are retracted
+        t2.remove(2);
+        schema.evaluate();
+        assertEquals(0.0, ta.getData().getValue(0));
+        assertEquals(40.0, ta.getData().getValue(1));
+        assertEquals(100.0, ta.getData().getValue(2));
+
+        // Without retraction formula, deletion triggers full evaluation
+        ta.setDefinitionAccu(new ColumnDefinitionAccu("", " [out] + 2.0 * [Id] ", null, "T2", "[G]", ExpressionKind.EXP4J));
+        schema.translate();
+        schema.evaluate();
+        t2.remove(1);
+        schema.evaluate();
+        assertEquals(20.0, ta.getData().getValue(1));
+        assertEquals(0.0, ta.getData().getValue(2));
+    }
+    @Test
+    public void accuRetractionRangeTest()
+    {
+        schema = new Schema("My Schema");
+        Table t1 = schema.createTable("T");
+        Column ta = schema.createColumn("T", "A", "Double");
+        ta.setKind(DcColumnKind.ACCU);
+        t1.append(Record.fromJson("{ }"));
+
+        // Group ids are provided by the user (not evaluated)
+        Table t2 = schema.createTable("T2");
+        schema.createColumn("T2", "Id", "Double");
+        schema.createColumn("T2", "G", "T");
+        t2.append(Record.fromJson("{ Id: 1.0, G: 0 }"));
+        t2.append(Record.fromJson("{ Id: 2.0, G: 0 }"));
+
+        ta.setDefinitionAccu(new ColumnDefinitionAccu("", " [out] + [Id] ", null, " [out] - [Id] ", "T2", "[G]", ExpressionKind.EXP4J));
+        schema.translate();
+        schema.evaluate();
+        assertEquals(3.0, (Double)ta.getData().getValue(0), 0.0);
+
+        // Facts appended and deleted between evaluations have never been accumulated and are not retracted
+        t2.append(Record.fromJson("{ Id: 4.0, G: 0 }"));
+        t2.append(Record.fromJson("{ Id: 8.0, G: 0 }"));
+        t2.remove(3);
+        schema.evaluate();
+        assertEquals(8.0, (Double)ta.getData().getValue(0), 0.0);
+    }
+    @Test
+    public void accuErrorTest()
+    {
+        schema = new Schema("My Schema");
+        Table t1 = schema.createTable("T");
+        Column ta = schema.createColumn("T", "A", "Double");
+        ta.setKind(DcColumnKind.ACCU);
+        t1.append(Record.fromJson("{ }"));
+
+        Table t2 = schema.createTable("T2");
+        schema.createColumn("T2", "Id", "Double");
+        schema.createColumn("T2", "G", "T");
+        t2.append(Record.fromJson("{ Id: 1.0, G: 0 }"));
+
+        ta.setDefinitionAccu(new ColumnDefinitionAccu("", " [out] + 1 / [Id] ", null, " [out] - 1 / [Id] ", "T2", "[G]", ExpressionKind.EXP4J));
+        schema.translate();
+        schema.evaluate();
+        assertEquals(1.0, (Double)ta.getData().getValue(0), 0.0);
+
+        // Accumulation fails after the first new fact has been added to the group
+        t2.append(Record.fromJson("{ Id: 2.0, G: 0 }"));
+        t2.append(Record.fromJson("{ Id: 0.0, G: 0 }"));
+        schema.evaluate();
+        assertFalse(ta.getEvaluateErrors().isEmpty());
+
+        // Partially updated groups are not used for delta evaluation
+        t2.remove(3);
+        schema.evaluate();
+        assertEquals(0.0, (Double)ta.getData().getValue(0), 0.0);
+    }
     protected Schema createAccuSchema() {
     	
         schema = new Schema("My Schema");
@@ -445,6 +977,303 @@ public class Tests {
     	// We could add several records and then evaluate. 
     }
 
+    @Test
+    public void dependencyGraphTest()
+    {
+    	Schema schema = createCalcSchema();
+        Column columnA = schema.getColumn("T", "A");
+        Column columnB = schema.getColumn("T", "B");
+        columnB.setDefinitionCalc(new ColumnDefinitionCalc("[A] + 1", ExpressionKind.EXP4J));
+
+        Column columnC = schema.createColumn("T", "C", "Double");
+        columnC.setKind(DcColumnKind.CALC);
+        columnC.setDefinitionCalc(new ColumnDefinitionCalc("[B] * 2", ExpressionKind.EXP4J));
+
+        // Cycle
+        Column columnD = schema.createColumn("T", "D", "Double");
+        columnD.setKind(DcColumnKind.CALC);
+        columnD.setDefinitionCalc(new ColumnDefinitionCalc("[E] + 1", ExpressionKind.EXP4J));
+        Column columnE = schema.createColumn("T", "E", "Double");
+        columnE.setKind(DcColumnKind.CALC);
+        columnE.setDefinitionCalc(new ColumnDefinitionCalc("[D] + 1", ExpressionKind.EXP4J));
+
+        schema.translate();
+        DependencyGraph graph = schema.getDependencyGraph();
+        assertEquals(3, graph.layers.size());
+        assertTrue(graph.layers.get(0).contains(columnA));
+        assertTrue(graph.layers.get(1).contains(columnB));
+        assertTrue(graph.layers.get(2).contains(columnC));
+        assertEquals(DcErrorCode.DEPENDENCY_CYCLE_ERROR, columnD.getDependenceError().code);
+        assertNull(columnC.getDependenceError());
+
+        // The graph is reused if dependencies do not change
+        schema.translate();
+        assertSame(graph, schema.getDependencyGraph());
+
+        // and re-built otherwise
+        columnC.setDefinitionCalc(new ColumnDefinitionCalc("[A] * 2", ExpressionKind.EXP4J));
+        schema.translate();
+        assertNotSame(graph, schema.getDependencyGraph());
+        assertEquals(2, schema.getDependencyGraph().layers.size());
+
+        schema.evaluate();
+        assertEquals(12.0, (Double)columnC.getData().getValue(2), 0.00001);
+    }
+
+    @Test
+    public void dirtyPropagationTest()
+    {
+    	Schema schema = createCalcSchema();
+        Table table = schema.getTable("T");
+        Column columnA = schema.getColumn("T", "A");
+        Column columnB = schema.getColumn("T", "B");
+        columnB.setDefinitionCalc(new ColumnDefinitionCalc("[A] + 1", ExpressionKind.EXP4J));
+        Table table2 = schema.createTable("T2");
+        schema.createColumn("T2", "X", "Double");
+
+        schema.translate();
+        assertTrue(columnB.isEvaluationNeeded());
+        schema.evaluate();
+        assertFalse(columnB.isEvaluationNeeded());
+
+        // Marker which will be overwritten only by evaluation
+        columnB.getData().setValue(0, 0.0);
+
+        // Nothing changed or changes in other tables
+        table2.append(Record.fromJson("{ X: 1.0 }"));
+        assertFalse(columnB.isEvaluationNeeded());
+        schema.evaluate();
+        assertEquals(0.0, (Double)columnB.getData().getValue(0), 0.00001);
+
+        // Changes in dependencies
+        columnA.getData().setValue(0, 1.0);
+        assertTrue(columnB.isEvaluationNeeded());
+        schema.evaluate();
+        assertEquals(2.0, (Double)columnB.getData().getValue(0), 0.00001);
+
+        // New records
+        table.append(Record.fromJson("{ A: 3.0 }"));
+        assertTrue(columnB.isEvaluationNeeded());
+        schema.evaluate();
+        assertEquals(4.0, (Double)columnB.getData().getValue(3), 0.00001);
+    }
+
+    @Test
+    public void schedulerTest() throws InterruptedException
+    {
+    	Schema schema = createCalcSchema();
+        Column columnB = schema.getColumn("T", "B");
+        columnB.setDefinitionCalc(new ColumnDefinitionCalc("[A] + 1", ExpressionKind.EXP4J));
+        schema.translate();
+        schema.evaluate();
+
+        schema.afterAppend = 100;
+        SchemaScheduler scheduler = new SchemaScheduler(schema);
+        scheduler.start();
+
+        // A burst of appends is evaluated once
+        scheduler.append("T", Record.fromJson("{ A: 3.0 }"));
+        scheduler.append("T", Record.fromJson("{ A: 4.0 }"));
+        scheduler.append("T", Record.fromJson("{ A: 5.0 }"));
+        assertEquals(0, scheduler.getEvaluationCount());
+
+        assertTrue(scheduler.awaitEvaluationCount(1, 10000));
+        assertEquals(1, scheduler.getEvaluationCount());
+        assertNull(scheduler.getLastError());
+        assertEquals(6.0, (Double)columnB.getData().getValue(5), 0.00001);
+
+        // Next append is evaluated again
+        scheduler.append("T", Record.fromJson("{ A: 6.0 }"));
+        assertTrue(scheduler.awaitEvaluationCount(2, 10000));
+        assertEquals(2, scheduler.getEvaluationCount());
+        assertEquals(7.0, (Double)columnB.getData().getValue(6), 0.00001);
+
+        scheduler.stop();
+    }
+    @Test
+    public void schedulerStopTest()
+    {
+    	Schema schema = createCalcSchema();
+        Column columnB = schema.getColumn("T", "B");
+        columnB.setDefinitionCalc(new ColumnDefinitionCalc("[A] + 1", ExpressionKind.EXP4J));
+
+        schema.afterAppend = 200;
+        SchemaScheduler scheduler = new SchemaScheduler(schema);
+        scheduler.start();
+        scheduler.append("T", Record.fromJson("{ A: 3.0 }"));
+
+        // Pending evaluation is performed without waiting for the timeout
+        long start = System.currentTimeMillis();
+        scheduler.stop();
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertEquals(1, scheduler.getEvaluationCount());
+        assertEquals(4.0, (Double)columnB.getData().getValue(3), 0.00001);
+    }
+
+    @Test
+    public void appendQueueTest() throws InterruptedException, ExecutionException
+    {
+    	Schema schema = createCalcSchema();
+        Table table = schema.getTable("T");
+        long start = table.getIdRange().end;
+
+        // Many producers append concurrently
+        AppendQueue queue = new AppendQueue(schema, 64, AppendQueue.Backpressure.BLOCK);
+        queue.start();
+
+        int producers = 4;
+        int count = 1000;
+        List<CompletableFuture<Long>> futures = new ArrayList<CompletableFuture<Long>>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int p=0; p<producers; p++) {
+        	Thread thread = new Thread(() -> {
+        		for(int i=0; i<count; i++) {
+        			CompletableFuture<Long> future = queue.append("T", Record.fromJson("{ A: 1.0 }"));
+        			synchronized(futures) { futures.add(future); }
+        		}
+        	});
+        	threads.add(thread);
+        	thread.start();
+        }
+        for(Thread thread : threads) thread.join();
+
+        List<Long> ids = new ArrayList<Long>();
+        for(CompletableFuture<Long> future : futures) ids.add(future.get());
+        assertEquals(producers * count, ids.stream().distinct().count());
+        assertEquals(start + producers * count, table.getIdRange().end);
+        queue.stop();
+
+        // Full queue fails if the writer cannot append
+        AppendQueue failQueue = new AppendQueue(schema, 2, AppendQueue.Backpressure.FAIL);
+        failQueue.start();
+        failQueue.getLock().lock();
+        boolean failed = false;
+        for(int i=0; i<10 && !failed; i++) {
+        	failed = failQueue.append("T", Record.fromJson("{ A: 2.0 }")).isCompletedExceptionally();
+        }
+        failQueue.getLock().unlock();
+        failQueue.stop();
+        assertTrue(failed);
+
+        // Records offered while stopping are either appended or rejected
+        AppendQueue stopQueue = new AppendQueue(schema, 16, AppendQueue.Backpressure.BLOCK);
+        stopQueue.start();
+        List<CompletableFuture<Long>> stopFutures = new ArrayList<CompletableFuture<Long>>();
+        Thread producer = new Thread(() -> {
+        	for(int i=0; i<2000; i++) {
+        		CompletableFuture<Long> future = stopQueue.append("T", Record.fromJson("{ A: 3.0, B: \"x\" }"));
+        		synchronized(stopFutures) { stopFutures.add(future); }
+        	}
+        });
+        producer.start();
+        stopQueue.stop();
+        producer.join();
+        synchronized(stopFutures) {
+        	for(CompletableFuture<Long> future : stopFutures) assertTrue(future.isDone());
+        }
+    }
+
+    @Test
+    public void snapshotTest()
+    {
+    	Schema schema = createCalcSchema();
+        Table table = schema.getTable("T");
+        Column columnA = schema.getColumn("T", "A");
+        Column columnB = schema.getColumn("T", "B");
+        columnB.setDefinitionCalc(new ColumnDefinitionCalc("[A] + 1", ExpressionKind.EXP4J));
+        schema.translate();
+        schema.evaluate();
+
+        SchemaSnapshot snapshot = schema.snapshot();
+        TableSnapshot snapshotT = snapshot.getTable("T");
+        long length = snapshotT.getLength();
+        double a0 = snapshotT.getDouble("A", 0);
+        double b0 = snapshotT.getDouble("B", 0);
+
+        // Names are case-insensitive like in the schema
+        assertSame(snapshotT, snapshot.getTable("t"));
+        assertEquals(a0, snapshotT.getDouble("a", 0), 0.00001);
+
+        // Changes are not visible in the snapshot
+        columnA.getData().setValue(0, 10.0);
+        table.append(Record.fromJson("{ A: 3.0 }"));
+        assertSame(snapshot, schema.snapshot());
+        assertEquals(length, snapshotT.getLength());
+        assertEquals(a0, snapshotT.getDouble("A", 0), 0.00001);
+        assertEquals(length, snapshotT.read(null).size());
+
+        // Evaluation publishes a new snapshot
+        schema.evaluate();
+        SchemaSnapshot snapshot2 = schema.snapshot();
+        assertEquals(snapshot.getVersion() + 1, snapshot2.getVersion());
+        assertEquals(length + 1, snapshot2.getTable("T").getLength());
+        assertEquals(11.0, snapshot2.getTable("T").getDouble("B", 0), 0.00001);
+        assertEquals(4.0, (Double)snapshot2.getTable("T").getValue("B", length), 0.00001);
+
+        // The old snapshot is still consistent
+        assertEquals(b0, snapshotT.getDouble("B", 0), 0.00001);
+    }
+
+    @Test
+    public void columnBatchTest()
+    {
+        schema = new Schema("My Schema");
+        Table table = schema.createTable("T");
+        Column columnA = schema.createColumn("T", "A", "Double");
+        Column columnB = schema.createColumn("T", "B", "String");
+        Column columnC = schema.createColumn("T", "C", "Double");
+        Column columnD = schema.createColumn("T", "D", "Double");
+        table.createIndex(Arrays.asList("B"));
+
+        ColumnBatch batch = new ColumnBatch(table, 100);
+        double[] a = batch.doubles(columnA);
+        String[] b = batch.strings(columnB);
+        long[] c = batch.longs(columnC);
+        for(int i=0; i<3; i++) {
+        	a[i] = i + 0.5;
+        	b[i] = "v" + i;
+        	c[i] = i * 10;
+        }
+        batch.setLength(3);
+
+        assertEquals(0, table.append(batch));
+        assertEquals(3, table.getLength());
+        assertEquals(1.5, (Double)columnA.getData().getValue(1), 0.00001);
+        assertEquals("v2", columnB.getData().getValue(2));
+        assertEquals(20.0, (Double)columnC.getData().getValue(2), 0.00001);
+        assertNull(columnD.getData().getValue(0)); // No values in the batch
+        assertEquals(3, columnD.getData().getNewRange().end);
+
+        // Batch is reused and numbers are parsed from strings
+        batch.clear();
+        String[] d = batch.strings(columnD);
+        d[0] = "1,234.5";
+        batch.setLength(1);
+        assertEquals(3, table.append(batch));
+        assertEquals(1234.5, (Double)columnD.getData().getValue(3), 0.00001);
+        assertEquals("", columnB.getData().getValue(3)); // Missing strings are empty like for one record
+
+        // Appended records are indexed
+        Record record = new Record();
+        record.set("B", "v1");
+        assertEquals(1, table.find(record, false));
+
+        // Strings are converted in the same way for one record and for a batch
+        table.append(Record.fromJson("{ B: 5 }"));
+        table.append(Record.fromJson("{ }"));
+        batch.clear();
+        Object[] objects = new Object[100];
+        objects[0] = 5;
+        batch.put(columnB, objects);
+        batch.setLength(2);
+        assertEquals(6, table.append(batch));
+        assertEquals("5", columnB.getData().getValue(6));
+        assertEquals(columnB.getData().getValue(4), columnB.getData().getValue(6));
+        assertEquals(columnB.getData().getValue(5), columnB.getData().getValue(7));
+        record.set("B", "5");
+        assertEquals(4, table.find(record, false));
+    }
+
     @Test
     public void csvReadTest()
     {
@@ -464,6 +1293,408 @@ public class Tests {
         */
     }
 
+    @Test
+    public void csvLoaderTest() throws IOException
+    {
+        schema = new Schema("My Schema");
+
+        StringBuilder csv = new StringBuilder("Id,Name,Amount\n");
+        for(int i=0; i<25; i++) {
+        	csv.append(i + ",Name " + i + "," + (i * 1.5) + "\n");
+        }
+
+        CsvLoader loader = new CsvLoader(schema);
+        loader.setBatchSize(10);
+        loader.setSampleSize(5);
+        List<Long> progress = new ArrayList<Long>();
+        loader.setProgress(x -> progress.add(x));
+
+        Table table = loader.load("T", new StringReader(csv.toString()), true);
+
+        assertEquals(25, table.getLength());
+        assertEquals(Arrays.asList(10L, 20L, 25L), progress);
+        assertEquals("Double", schema.getColumn("T", "Id").getOutput().getName());
+        assertEquals("String", schema.getColumn("T", "Name").getOutput().getName());
+        assertEquals("Double", schema.getColumn("T", "Amount").getOutput().getName());
+        assertEquals(24.0, (Double)schema.getColumn("T", "Id").getData().getValue(24), 0.00001);
+        assertEquals("Name 7", schema.getColumn("T", "Name").getData().getValue(7));
+        assertEquals(30.0, (Double)schema.getColumn("T", "Amount").getData().getValue(20), 0.00001);
+    }
+
+    @Test
+    public void numberParserTest()
+    {
+        NumberParser parser = NumberParser.US;
+
+        assertEquals(1234.5, parser.parse(" 1,234.5 "), 0.0);
+        assertEquals(-0.25, parser.parse("-.25"), 0.0);
+        assertEquals(1.5e-7, parser.parse("1.5E-7"), 0.0);
+        assertEquals(12.0, parser.parse("12abc"), 0.0);
+        assertEquals(Double.NEGATIVE_INFINITY, parser.parse("-Infinity"), 0.0);
+        assertTrue(Double.isNaN(parser.parse("abc")));
+        assertTrue(Double.isNaN(parser.parse("")));
+        assertTrue(Double.isNaN(parser.parse((String)null)));
+        assertEquals(42.0, parser.parse("x=42;".toCharArray(), 2, 4), 0.0);
+
+        // Results are the same as for the standard parser
+        java.util.Random random = new java.util.Random(1);
+        for(int i=0; i<10000; i++) {
+        	double value = i % 2 == 0 ? random.nextDouble() * 1e6 : Double.longBitsToDouble(random.nextLong());
+        	if(Double.isNaN(value) || Double.isInfinite(value)) continue;
+        	String text = Double.toString(value);
+        	assertEquals(text, Double.parseDouble(text), parser.parse(text), 0.0);
+        }
+
+        // Other locales
+        NumberParser de = NumberParser.forLocale(java.util.Locale.GERMANY);
+        assertEquals(1234.5, de.parse("1.234,5"), 0.0);
+
+        // Numeric columns parse appended strings
+        schema = new Schema("My Schema");
+        schema.createTable("T");
+        Column column = schema.createColumn("T", "A", "Double");
+        column.getData().appendValue("2,500.75");
+        column.getData().appendValue("n/a");
+        assertEquals(2500.75, (Double)column.getData().getValue(0), 0.0);
+        assertTrue(Double.isNaN((Double)column.getData().getValue(1)));
+    }
+
+    @Test
+    public void jsonLoaderTest()
+    {
+        schema = new Schema("My Schema");
+        Table table = schema.createTable("T");
+        Column columnA = schema.createColumn("T", "A", "Double");
+        Column columnB = schema.createColumn("T", "B", "String");
+
+        JsonLoader loader = new JsonLoader(schema);
+        loader.setBatchSize(2);
+        List<Long> progress = new ArrayList<Long>();
+        loader.setProgress(x -> progress.add(x));
+
+        // Array of records
+        loader.load("T", "[ { \"a\": 1.5, \"B\": \"x\\\"y\" }, { \"B\": \"z\", \"C\": { \"D\": [1, 2] } }, { \"A\": \"2,000\", \"B\": null } ]");
+        assertEquals(3, table.getLength());
+        assertEquals(Arrays.asList(2L, 3L), progress);
+        assertEquals(1.5, (Double)columnA.getData().getValue(0), 0.00001);
+        assertEquals("x\"y", columnB.getData().getValue(0));
+        assertNull(columnA.getData().getValue(1));
+        assertEquals("z", columnB.getData().getValue(1));
+        assertEquals(2000.0, (Double)columnA.getData().getValue(2), 0.00001);
+        assertEquals("", columnB.getData().getValue(2)); // Null strings are empty like for one record
+
+        // Envelope with data
+        loader.load("T", "{ \"data\": [ { \"A\": -1e2 } ] }");
+        assertEquals(4, table.getLength());
+        assertEquals(-100.0, (Double)columnA.getData().getValue(3), 0.00001);
+
+        // One record
+        loader.load("T", "{ \"A\": 7, \"B\": true }");
+        assertEquals(5, table.getLength());
+        assertEquals(7.0, (Double)columnA.getData().getValue(4), 0.00001);
+        assertEquals("true", columnB.getData().getValue(4));
+    }
+
+    @Test
+    public void persistentSchemaTest() throws IOException
+    {
+        File directory = java.nio.file.Files.createTempDirectory("sc-core").toFile();
+
+        Schema schema = Schema.open(directory);
+        Table table = schema.createTable("T");
+        Column columnA = schema.createColumn("T", "A", "Double");
+        Column columnS = schema.createColumn("T", "S", "String");
+        Column columnB = schema.createColumn("T", "B", "Double");
+        columnB.setKind(DcColumnKind.CALC);
+        columnB.setDefinitionCalc(new ColumnDefinitionCalc("[A] * 2", ExpressionKind.EXP4J));
+        assertNotNull(columnA.getData().getFile());
+        assertNull(columnS.getData().getFile());
+
+        table.append(Record.fromJson("{ A: 1.0, S: \"x\" }"));
+        table.append(Record.fromJson("{ S: \"y\" }")); // Null
+        table.append(Record.fromJson("{ A: \"abc\" }")); // NaN
+        schema.translate();
+        schema.evaluate();
+        schema.close();
+
+        // Reopen
+        Schema schema2 = Schema.open(directory);
+        Table table2 = schema2.getTable("T");
+        Column columnA2 = schema2.getColumn("T", "A");
+        Column columnB2 = schema2.getColumn("T", "B");
+        assertEquals(3, table2.getLength());
+        assertEquals(1.0, (Double)columnA2.getData().getValue(0), 0.0);
+        assertNull(columnA2.getData().getValue(1));
+        assertTrue(Double.isNaN((Double)columnA2.getData().getValue(2)));
+        assertEquals(2.0, (Double)columnB2.getData().getValue(0), 0.0);
+        assertNull(schema2.getColumn("T", "S").getData().getValue(0)); // Not persistent
+
+        // Continue working
+        table2.append(Record.fromJson("{ A: 5.0 }"));
+        schema2.translate();
+        schema2.evaluate();
+        assertEquals(10.0, (Double)columnB2.getData().getValue(3), 0.0);
+
+        // Snapshots share mapped values (copy on write)
+        ColumnStorage snapshot = columnA2.getData().getStorage().snapshot();
+        assertTrue(snapshot instanceof ColumnStorageMapped);
+        columnA2.getData().setValue(0, 7.0);
+        table2.append(Record.fromJson("{ A: 8.0 }"));
+        assertEquals(1.0, (Double)snapshot.getValue(0), 0.0);
+        assertNull(snapshot.getValue(1));
+        assertEquals(7.0, (Double)columnA2.getData().getValue(0), 0.0);
+        assertEquals(8.0, (Double)columnA2.getData().getValue(4), 0.0);
+        schema2.close();
+        assertEquals(1.0, (Double)snapshot.getValue(0), 0.0);
+    }
+
+    @Test
+    public void checkpointTest() throws IOException
+    {
+        File directory = java.nio.file.Files.createTempDirectory("sc-core").toFile();
+
+        Schema schema = createCalcSchema();
+        Table table = schema.getTable("T");
+        Column columnB = schema.getColumn("T", "B");
+        columnB.setDefinitionCalc(new ColumnDefinitionCalc("[A] + 1", ExpressionKind.EXP4J));
+        Column columnS = schema.createColumn("T", "S", "String");
+        columnS.getData().setValue(1, "x");
+        schema.translate();
+        schema.evaluate();
+        table.append(Record.fromJson("{ A: 3.0 }")); // Not evaluated
+
+        schema.checkpoint(directory);
+        schema.checkpoint(directory); // Replaces the previous checkpoint
+        assertEquals(schema.getColumns().size(), directory.listFiles((dir, name) -> name.endsWith(".dump")).length);
+
+        Schema schema2 = Schema.restore(directory);
+        Table table2 = schema2.getTable("T");
+        Column columnA2 = schema2.getColumn("T", "A");
+        Column columnB2 = schema2.getColumn("T", "B");
+        assertEquals(table.getLength(), table2.getLength());
+        assertEquals(columnA2.getData().getValue(0), schema.getColumn("T", "A").getData().getValue(0));
+        assertEquals(columnB.getData().getValue(1), columnB2.getData().getValue(1));
+        assertEquals("x", schema2.getColumn("T", "S").getData().getValue(1));
+        assertNull(columnB2.getData().getValue(3));
+        assertEquals(1, columnB2.getData().getNewRange().getLength());
+
+        // Only new records are evaluated
+        schema2.translate();
+        columnB2.getData().setValue(0, 0.0); // Marker which will be overwritten only by full evaluation
+        schema2.evaluate();
+        assertEquals(0.0, (Double)columnB2.getData().getValue(0), 0.0);
+        assertEquals(4.0, (Double)columnB2.getData().getValue(3), 0.0);
+    }
+
+    @Test
+    public void appendLogTest() throws IOException
+    {
+        File directory = java.nio.file.Files.createTempDirectory("sc-core").toFile();
+        File logFile = new File(directory, "append.log");
+
+        Schema schema = createCalcSchema();
+        Table table = schema.getTable("T");
+        Column columnA = schema.getColumn("T", "A");
+        Column columnB = schema.getColumn("T", "B");
+        columnB.setDefinitionCalc(new ColumnDefinitionCalc("[A] + 1", ExpressionKind.EXP4J));
+        schema.translate();
+        schema.evaluate();
+
+        AppendLog log = new AppendLog(logFile);
+        log.setFsyncPolicy(AppendLog.FsyncPolicy.ALWAYS);
+        schema.setAppendLog(log);
+        schema.checkpoint(directory); // Records appended before are not logged
+        assertEquals(AppendLog.HEADER, logFile.length()); // Only the header
+
+        table.append(Record.fromJson("{ A: 10.0 }"));
+        ColumnBatch batch = new ColumnBatch(table, 10);
+        batch.doubles(columnA)[0] = 20.0;
+        batch.doubles(columnA)[1] = 30.0;
+        batch.nulls(columnA)[1] = true;
+        batch.setLength(2);
+        table.append(batch);
+        log.commit();
+        log.close();
+
+        // Incomplete entry written during a crash
+        java.nio.file.Files.write(logFile.toPath(), new byte[] {0, 0, 0, 100, 1, 2}, java.nio.file.StandardOpenOption.APPEND);
+
+        Schema schema2 = Schema.restore(directory);
+        AppendLog log2 = new AppendLog(logFile);
+        schema2.setAppendLog(log2);
+        assertEquals(3, log2.replay(schema2));
+
+        Table table2 = schema2.getTable("T");
+        Column columnA2 = schema2.getColumn("T", "A");
+        Column columnB2 = schema2.getColumn("T", "B");
+        assertEquals(6, table2.getLength());
+        assertEquals(10.0, (Double)columnA2.getData().getValue(3), 0.0);
+        assertEquals(21.0, (Double)columnB2.getData().getValue(4), 0.0); // Evaluated after replay
+        assertNull(columnA2.getData().getValue(5));
+
+        // Replayed records are not logged again but new records are appended after them
+        table2.append(Record.fromJson("{ A: 40.0 }"));
+        log2.close();
+        Schema schema3 = Schema.restore(directory);
+        AppendLog log3 = new AppendLog(logFile);
+        assertEquals(4, log3.replay(schema3));
+        assertEquals(41.0, (Double)schema3.getColumn("T", "B").getData().getValue(6), 0.0);
+
+        // Crash after the checkpoint but before truncation of the log: records in the checkpoint are not appended again
+        schema3.setAppendLog(log3);
+        schema3.getTable("T").append(Record.fromJson("{ A: 50.0 }"));
+        log3.commit();
+        java.nio.file.Path copy = new File(directory, "copy.log").toPath();
+        java.nio.file.Files.copy(logFile.toPath(), copy);
+        schema3.checkpoint(directory);
+        log3.close();
+        java.nio.file.Files.move(copy, logFile.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+
+        Schema schema4 = Schema.restore(directory);
+        AppendLog log4 = new AppendLog(logFile);
+        schema4.setAppendLog(log4);
+        assertEquals(0, log4.replay(schema4));
+        assertEquals(8, schema4.getTable("T").getLength());
+
+        // Records appended after the checkpoint are replayed
+        schema4.getTable("T").append(Record.fromJson("{ A: 60.0 }"));
+        log4.close();
+        Schema schema5 = Schema.restore(directory);
+        AppendLog log5 = new AppendLog(logFile);
+        assertEquals(1, log5.replay(schema5));
+        assertEquals(61.0, (Double)schema5.getColumn("T", "B").getData().getValue(8), 0.0);
+
+        // Crash after truncation of the log but before its new generation is written: new records are not skipped
+        schema5.setAppendLog(log5);
+        long generation = log5.getGeneration();
+        schema5.checkpoint(directory);
+        log5.close();
+        try(java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(logFile.toPath(), java.nio.file.StandardOpenOption.WRITE)) {
+            channel.truncate(AppendLog.HEADER);
+            java.nio.ByteBuffer header = java.nio.ByteBuffer.allocate(AppendLog.HEADER);
+            header.putInt(AppendLog.MAGIC).putLong(generation).flip();
+            channel.write(header, 0);
+        }
+
+        Schema schema6 = Schema.restore(directory);
+        AppendLog log6 = new AppendLog(logFile);
+        schema6.setAppendLog(log6);
+        assertNotEquals(generation, log6.getGeneration());
+        schema6.getTable("T").append(Record.fromJson("{ A: 70.0 }"));
+        log6.close();
+        Schema schema7 = Schema.restore(directory);
+        AppendLog log7 = new AppendLog(logFile);
+        assertEquals(1, log7.replay(schema7));
+        assertEquals(71.0, (Double)schema7.getColumn("T", "B").getData().getValue(9), 0.0);
+        log7.close();
+    }
+
+    @Test
+    public void stringDictionaryTest() throws IOException
+    {
+        schema = new Schema("My Schema");
+        Table table = schema.createTable("T");
+        Column columnS = schema.createColumn("T", "S", "String");
+        Column columnA = schema.createColumn("T", "A", "Double");
+        String[] statuses = { "ok", "warn", "ok", "ok", "fail", "ok" };
+        for(int i=0; i<statuses.length; i++) {
+        	Record record = new Record();
+        	record.set("S", new String(statuses[i])); // Different objects with equal values
+        	record.set("A", (double)i);
+        	table.append(record);
+        }
+        columnS.getData().setValue(2, null);
+
+        // Repeated values are stored once
+        assertTrue( columnS.getData().getStorage() instanceof ColumnStorageString );
+        ColumnStorageString storage = (ColumnStorageString)columnS.getData().getStorage();
+        assertEquals(3, storage.getDictionary().size());
+        assertSame(columnS.getData().getValue(0), columnS.getData().getValue(5));
+        assertNull(columnS.getData().getValue(2));
+
+        // Scan compares codes
+        Record key = new Record();
+        key.set("S", "fail");
+        assertEquals(4, table.find(key, false));
+        key.set("S", "unknown");
+        assertEquals(-1, table.find(key, false));
+        key.set("S", null);
+        assertEquals(2, table.find(key, false));
+        key.set("S", "ok");
+        key.set("A", 3.0);
+        assertEquals(3, table.find(key, false));
+
+        // Index uses codes
+        table.createIndex(Arrays.asList("S"));
+        key = new Record();
+        key.set("S", "warn");
+        assertEquals(1, table.find(key, false));
+        key.set("S", "unknown");
+        assertEquals(-1, table.find(key, false));
+        columnS.getData().setValue(1, "new");
+        key.set("S", "new");
+        assertEquals(1, table.find(key, false));
+
+        // Snapshot sees old values
+        ColumnStorage snapshot = storage.snapshot();
+        columnS.getData().setValue(0, "changed");
+        assertEquals("ok", snapshot.getValue(0));
+
+        // Dictionary and codes are dumped
+        File directory = java.nio.file.Files.createTempDirectory("sc-core").toFile();
+        schema.checkpoint(directory);
+        Schema schema2 = Schema.restore(directory);
+        Column columnS2 = schema2.getColumn("T", "S");
+        assertTrue( columnS2.getData().getStorage() instanceof ColumnStorageString );
+        assertEquals("changed", columnS2.getData().getValue(0));
+        assertEquals("fail", columnS2.getData().getValue(4));
+        assertNull(columnS2.getData().getValue(2));
+
+        // Concurrent encoding assigns one code per distinct value
+        ValueDictionary dictionary = new ValueDictionary();
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int t=0; t<4; t++) {
+        	Thread thread = new Thread(() -> {
+        		for(int i=0; i<10000; i++) {
+        			String value = "v" + (i % 1000);
+        			assertEquals(value, dictionary.decode(dictionary.encode(value)));
+        		}
+        	});
+        	threads.add(thread);
+        	thread.start();
+        }
+        for(Thread thread : threads) {
+        	try { thread.join(); } catch (InterruptedException e) { fail(); }
+        }
+        assertEquals(1000, dictionary.size());
+    }
+
+    @Test
+    public void linkStorageTest()
+    {
+    	Schema schema = createLinkSchema();
+        Column c5 = schema.getColumn("T2", "C");
+    	c5.setDefinitionLink(new ColumnDefinitionLink(" { [A] = [A]; [B] = [B] } ", ExpressionKind.EXP4J));
+        c5.translate();
+        c5.evaluate();
+
+        // Link columns store ids as primitive longs
+        assertTrue( c5.getData().getStorage() instanceof ColumnStorageLong );
+        assertEquals(1L, c5.getData().getValue(1));
+        assertEquals(1L, c5.getData().getLong(1));
+
+        // Paths are followed without boxing
+        List<Column> path = Arrays.asList(c5, schema.getColumn("T", "A"));
+        assertEquals(10.0, (Double)c5.getData().getValue(path, 1), 0.0);
+        assertEquals(5.0, c5.getData().getDouble(path, 0), 0.0);
+
+        // Null link
+        c5.getData().setValue(1, null);
+        assertEquals(ColumnStorageLong.NULL, c5.getData().getLong(1));
+        assertNull(c5.getData().getValue(path, 1));
+        assertTrue(Double.isNaN(c5.getData().getDouble(path, 1)));
+    }
+
     @Test
     public void classLoaderTest() 
     {